@@ -0,0 +1,113 @@
+package hello.jdbc.repository;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+
+/**
+ * 벤치마크 - LedgerMemberRepository의 save, findById, update, delete, transfer
+ *
+ * DB를 사용하지 않으므로 MemberRepositoryBenchmark의 dataSource 파라미터 없이 따로 측정한다
+ * 회원 수와 호출 방식은 MemberRepositoryBenchmark와 같으므로 두 결과를 그대로 비교할 수 있다
+ * transfer는 쓰레드 1개와 8개로 측정해서 stripe 락이 경합할 때의 처리량을 확인한다
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LedgerMemberRepositoryBenchmark {
+
+    private static final int SEED_SIZE = 1000; // findById, update, transfer 대상 회원 수
+
+    private LedgerMemberRepository repository;
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        repository = new LedgerMemberRepository(SEED_SIZE * 4, 256);
+        for (int i = 0; i < SEED_SIZE; i++) {
+            repository.save(new Member("m" + i, 10000));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanUpIteration() {
+        // save 벤치마크가 넣은 회원
+        long last = sequence.get();
+        for (long i = 1; i <= last; i++) {
+            repository.delete("s" + i);
+        }
+        sequence.set(0);
+    }
+
+    @Benchmark
+    public Member save() {
+        return repository.save(new Member("s" + sequence.incrementAndGet(), 10000));
+    }
+
+    @Benchmark
+    public Member findById() {
+        return repository.findById(randomSeedId());
+    }
+
+    @Benchmark
+    public void update() {
+        repository.update(randomSeedId(), ThreadLocalRandom.current().nextInt(10000));
+    }
+
+    @Benchmark
+    public void delete(DeleteState state) {
+        repository.delete(state.memberId);
+    }
+
+    @Benchmark
+    public TransferResult transfer() {
+        return randomTransfer();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public TransferResult transferContended() {
+        return randomTransfer();
+    }
+
+    /**
+     * delete 벤치마크가 지울 회원을 호출마다 미리 넣어둔다
+     */
+    @State(Scope.Thread)
+    public static class DeleteState {
+
+        private final AtomicLong sequence = new AtomicLong();
+        private String memberId;
+
+        @Setup(Level.Invocation)
+        public void insert(LedgerMemberRepositoryBenchmark benchmark) {
+            memberId = "d" + Thread.currentThread().getId() % 1000 + "_" + sequence.incrementAndGet() % 100000;
+            benchmark.repository.upsert(new Member(memberId, 10000));
+        }
+    }
+
+    /**
+     * 서로 다른 두 회원 사이에 작은 금액을 보낸다. 양방향 이체가 섞이므로 잔액이 한쪽으로 몰리지 않는다
+     */
+    private TransferResult randomTransfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(SEED_SIZE);
+        int to = (from + 1 + random.nextInt(SEED_SIZE - 1)) % SEED_SIZE;
+        return repository.transfer("m" + from, "m" + to, random.nextInt(1, 100));
+    }
+
+    private String randomSeedId() {
+        return "m" + ThreadLocalRandom.current().nextInt(SEED_SIZE);
+    }
+}
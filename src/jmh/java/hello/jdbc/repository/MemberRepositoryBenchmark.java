@@ -0,0 +1,198 @@
+package hello.jdbc.repository;
+
+import static hello.jdbc.connection.ConnectionConst.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import hello.jdbc.domain.Member;
+
+/**
+ * 벤치마크 - MemberRepositoryV0 ~ V5의 save, findById, update, delete 비교
+ *
+ * 프로세스 안의 H2 메모리 DB를 사용한다(build.gradle의 jmh.jvmArgs 참고)
+ * dataSource 파라미터로 매번 커넥션을 새로 만드는 DriverManagerDataSource와 커넥션 풀(HikariDataSource)을 비교한다
+ * V0은 DataSource를 받지 않고 DBConnectionUtil의 커넥션 풀을 사용하므로 dataSource 파라미터와 관계없이 같은 결과가 나온다
+ * DB를 사용하지 않는 LedgerMemberRepository는 dataSource 파라미터가 의미 없으므로 LedgerMemberRepositoryBenchmark에서 따로 측정한다
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MemberRepositoryBenchmark {
+
+    private static final int SEED_SIZE = 1000; // findById, update 대상 회원 수
+
+    @Param({"V0", "V1", "V2", "V3", "V4_1", "V4_2", "V5"})
+    private String version;
+
+    @Param({"driverManager", "hikari"})
+    private String dataSource;
+
+    private DataSource ds;
+    private Target target;
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        ds = createDataSource();
+        execute("create table if not exists member ("
+            + "member_id varchar(10), money integer not null default 0, primary key (member_id))");
+        execute("delete from member");
+        for (int i = 0; i < SEED_SIZE; i++) {
+            execute("insert into member(member_id, money) values ('m" + i + "', 10000)");
+        }
+        target = createTarget();
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanUpIteration() throws SQLException {
+        execute("delete from member where member_id like 's%'"); // save 벤치마크가 넣은 회원
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (ds instanceof HikariDataSource) {
+            ((HikariDataSource) ds).close();
+        }
+    }
+
+    @Benchmark
+    public Member save() throws SQLException {
+        return target.save(new Member("s" + sequence.incrementAndGet(), 10000));
+    }
+
+    @Benchmark
+    public Member findById() throws SQLException {
+        return target.findById(randomSeedId());
+    }
+
+    @Benchmark
+    public void update() throws SQLException {
+        target.update(randomSeedId(), ThreadLocalRandom.current().nextInt(10000));
+    }
+
+    @Benchmark
+    public void delete(DeleteState state) throws SQLException {
+        target.delete(state.memberId);
+    }
+
+    /**
+     * delete 벤치마크가 지울 회원을 호출마다 미리 넣어둔다
+     * Level.Invocation은 호출마다 시간 측정 비용이 붙지만, DB 호출은 수 마이크로초 이상이므로 영향이 작다
+     */
+    @State(Scope.Thread)
+    public static class DeleteState {
+
+        private final AtomicLong sequence = new AtomicLong();
+        private String memberId;
+
+        @Setup(Level.Invocation)
+        public void insert(MemberRepositoryBenchmark benchmark) throws SQLException {
+            memberId = "d" + Thread.currentThread().getId() % 1000 + "_" + sequence.incrementAndGet() % 100000;
+            benchmark.execute("merge into member(member_id, money) key(member_id) values ('" + memberId + "', 10000)");
+        }
+    }
+
+    private String randomSeedId() {
+        return "m" + ThreadLocalRandom.current().nextInt(SEED_SIZE);
+    }
+
+    private DataSource createDataSource() {
+        if (dataSource.equals("hikari")) {
+            HikariDataSource hikari = new HikariDataSource();
+            hikari.setJdbcUrl(URL);
+            hikari.setUsername(USERNAME);
+            hikari.setPassword(PASSWORD);
+            hikari.setMaximumPoolSize(MAXIMUM_POOL_SIZE);
+            return hikari;
+        }
+        return new DriverManagerDataSource(URL, USERNAME, PASSWORD);
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection con = ds.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    /**
+     * 버전마다 메서드 시그니처가 달라서(SQLException 여부, 인터페이스 여부) 같은 형태로 맞춘다
+     */
+    private interface Target {
+        Member save(Member member) throws SQLException;
+        Member findById(String memberId) throws SQLException;
+        void update(String memberId, int money) throws SQLException;
+        void delete(String memberId) throws SQLException;
+    }
+
+    private Target createTarget() {
+        switch (version) {
+            case "V0":
+                MemberRepositoryV0 v0 = new MemberRepositoryV0();
+                return new Target() {
+                    public Member save(Member member) throws SQLException { return v0.save(member); }
+                    public Member findById(String memberId) throws SQLException { return v0.findById(memberId); }
+                    public void update(String memberId, int money) throws SQLException { v0.update(memberId, money); }
+                    public void delete(String memberId) throws SQLException { v0.delete(memberId); }
+                };
+            case "V1":
+                MemberRepositoryV1 v1 = new MemberRepositoryV1(ds);
+                return new Target() {
+                    public Member save(Member member) throws SQLException { return v1.save(member); }
+                    public Member findById(String memberId) throws SQLException { return v1.findById(memberId); }
+                    public void update(String memberId, int money) throws SQLException { v1.update(memberId, money); }
+                    public void delete(String memberId) throws SQLException { v1.delete(memberId); }
+                };
+            case "V2":
+                MemberRepositoryV2 v2 = new MemberRepositoryV2(ds);
+                return new Target() {
+                    public Member save(Member member) throws SQLException { return v2.save(member); }
+                    public Member findById(String memberId) throws SQLException { return v2.findById(memberId); }
+                    public void update(String memberId, int money) throws SQLException { v2.update(memberId, money); }
+                    public void delete(String memberId) throws SQLException { v2.delete(memberId); }
+                };
+            case "V3":
+                MemberRepositoryV3 v3 = new MemberRepositoryV3(ds);
+                return new Target() {
+                    public Member save(Member member) throws SQLException { return v3.save(member); }
+                    public Member findById(String memberId) throws SQLException { return v3.findById(memberId); }
+                    public void update(String memberId, int money) throws SQLException { v3.update(memberId, money); }
+                    public void delete(String memberId) throws SQLException { v3.delete(memberId); }
+                };
+            case "V4_1":
+                return of(new MemberRepositoryV4_1(ds));
+            case "V4_2":
+                return of(new MemberRepositoryV4_2(ds));
+            case "V5":
+                return of(new MemberRepositoryV5(ds));
+            default:
+                throw new IllegalArgumentException("unknown version: " + version);
+        }
+    }
+
+    private static Target of(MemberRepository repository) {
+        return new Target() {
+            public Member save(Member member) { return repository.save(member); }
+            public Member findById(String memberId) { return repository.findById(memberId); }
+            public void update(String memberId, int money) { repository.update(memberId, money); }
+            public void delete(String memberId) { repository.delete(memberId); }
+        };
+    }
+}
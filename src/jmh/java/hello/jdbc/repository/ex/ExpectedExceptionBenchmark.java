@@ -0,0 +1,54 @@
+package hello.jdbc.repository.ex;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 벤치마크 - 키 중복 예외를 던지고 잡는 비용. 스택 트레이스를 채우는 경우와 채우지 않는 경우(stackless)를 비교한다
+ *
+ * 스택 트레이스 비용은 호출 깊이에 비례하므로 depth 만큼 호출을 쌓은 뒤에 던진다
+ * (스프링 트랜잭션 프록시, 서비스, 리포지토리를 거치면 수십 단계가 쌓인다)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ExpectedExceptionBenchmark {
+
+    @Param({"10", "50", "150"})
+    private int depth;
+
+    private final SQLException cause = new SQLException("Unique index or primary key violation", "23505", 23505);
+
+    @Benchmark
+    public Object fullStackTrace() {
+        try {
+            return throwAt(depth, false);
+        } catch (MyDuplicateKeyException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object stackless() {
+        try {
+            return throwAt(depth, true);
+        } catch (MyDuplicateKeyException e) {
+            return e;
+        }
+    }
+
+    private Object throwAt(int remaining, boolean expected) {
+        if (remaining == 0) {
+            throw expected ? MyDuplicateKeyException.expected(cause) : new MyDuplicateKeyException(cause);
+        }
+        return throwAt(remaining - 1, expected);
+    }
+}
@@ -0,0 +1,382 @@
+package hello.jdbc.service;
+
+import static hello.jdbc.connection.ConnectionConst.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.AnnotationTransactionAttributeSource;
+import org.springframework.transaction.interceptor.TransactionInterceptor;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import hello.jdbc.repository.MemberRepository;
+import hello.jdbc.repository.MemberRepositoryV3;
+import hello.jdbc.repository.MemberRepositoryV4_1;
+import hello.jdbc.repository.MemberRepositoryV4_2;
+import hello.jdbc.repository.MemberRepositoryV5;
+
+/**
+ * 부하 테스트 - 여러 쓰레드로 accountTransfer를 동시에 호출하고 처리량, 지연 시간, 롤백 수를 출력한다
+ *
+ * ./gradlew transferLoad --args='service=V4 threads=16 accounts=1000 distribution=zipfian seconds=30'
+ *
+ * service: V3_1, V3_3, V4
+ * repository: V4 에서 사용할 리포지토리(V4_1, V4_2, V5)
+ * distribution: uniform(모든 회원 균등), zipfian(일부 회원에 몰림), single(모든 이체가 한 회원과 주고받음)
+ *
+ * 끝나면 전체 잔액 합계가 처음과 같은지 확인한다. 갱신이 유실되면 합계가 달라진다
+ */
+public class TransferLoadGenerator {
+
+    private static final String ID_PREFIX = "L"; // 부하 테스트용 회원 id. 다른 테스트 데이터와 섞이지 않게 한다
+    private static final int INITIAL_MONEY = 1_000_000;
+
+    private final Map<String, String> options;
+    private final int threads;
+    private final int accounts;
+    private final int seconds;
+    private final int warmupSeconds;
+    private final AccountSelector selector;
+
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder rolledBack = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder lockTimeouts = new LongAdder();
+
+    TransferLoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.threads = intOption("threads", 8);
+        this.accounts = intOption("accounts", 1000);
+        this.seconds = intOption("seconds", 30);
+        this.warmupSeconds = intOption("warmup", 5);
+        this.selector = AccountSelector.of(option("distribution", "uniform"), accounts,
+            Double.parseDouble(option("zipfExponent", "0.99")));
+        if (accounts < 2) {
+            throw new IllegalArgumentException("accounts must be at least 2: " + accounts);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index < 0) {
+                throw new IllegalArgumentException("option must be key=value: " + arg);
+            }
+            options.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        new TransferLoadGenerator(options).run();
+    }
+
+    void run() throws Exception {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(URL);
+        dataSource.setUsername(USERNAME);
+        dataSource.setPassword(PASSWORD);
+        dataSource.setMaximumPoolSize(threads);
+
+        try {
+            seed(dataSource);
+            long before = totalMoney(dataSource);
+            Transfer transfer = createTransfer(dataSource);
+
+            System.out.printf("service=%s threads=%d accounts=%d distribution=%s seconds=%d%n",
+                option("service", "V4"), threads, accounts, option("distribution", "uniform"), seconds);
+
+            long[][] latencies = runWorkers(transfer);
+            long after = totalMoney(dataSource);
+            report(latencies, before, after);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    private long[][] runWorkers(Transfer transfer) throws InterruptedException {
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long deadline = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+
+        long[][] latencies = new long[threads][];
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    latencies[index] = work(transfer, measureFrom, deadline);
+                } finally {
+                    done.countDown();
+                }
+            }, "transfer-load-" + t);
+            worker.start();
+        }
+        done.await();
+        return latencies;
+    }
+
+    /**
+     * 한 쓰레드의 작업. 측정 구간의 지연 시간(나노초)을 모아서 돌려준다
+     */
+    private long[] work(Transfer transfer, long measureFrom, long deadline) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] samples = new long[1024];
+        int count = 0;
+
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            int[] pair = selector.next(random);
+            String fromId = ID_PREFIX + pair[0];
+            String toId = ID_PREFIX + pair[1];
+            int money = random.nextInt(1, 100);
+
+            boolean measuring = now >= measureFrom;
+            try {
+                transfer.run(fromId, toId, money);
+                if (measuring) {
+                    succeeded.increment();
+                }
+            } catch (Exception e) {
+                if (measuring) {
+                    classify(e);
+                }
+            }
+
+            if (measuring) {
+                if (count == samples.length) {
+                    samples = Arrays.copyOf(samples, count * 2);
+                }
+                samples[count++] = System.nanoTime() - now;
+            }
+        }
+        return Arrays.copyOf(samples, count);
+    }
+
+    /**
+     * 세 서비스 모두 예외가 나면 롤백한다. 원인이 데드락인지 락 대기 시간 초과인지 따로 센다
+     */
+    private void classify(Exception e) {
+        rolledBack.increment();
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DeadlockLoserDataAccessException) {
+                deadlocks.increment();
+                return;
+            }
+            if (cause instanceof CannotAcquireLockException) {
+                lockTimeouts.increment();
+                return;
+            }
+            if (cause instanceof SQLException) {
+                SQLException sqlException = (SQLException) cause;
+                if ("40001".equals(sqlException.getSQLState())) { // h2 deadlock
+                    deadlocks.increment();
+                    return;
+                }
+                if (sqlException.getErrorCode() == 50200) { // h2 lock timeout
+                    lockTimeouts.increment();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void report(long[][] latencies, long before, long after) {
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).toArray();
+        Arrays.sort(all);
+
+        System.out.printf("transfers/sec=%.1f succeeded=%d rolledBack=%d deadlocks=%d lockTimeouts=%d%n",
+            succeeded.sum() / (double) seconds, succeeded.sum(), rolledBack.sum(), deadlocks.sum(), lockTimeouts.sum());
+        System.out.printf("latency(us) p50=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+            percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999),
+            all.length == 0 ? 0.0 : all[all.length - 1] / 1000.0);
+        System.out.printf("total money before=%d after=%d -> %s%n", before, after,
+            before == after ? "OK" : "VIOLATED (lost updates)");
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1000.0;
+    }
+
+    private Transfer createTransfer(DataSource dataSource) {
+        PlatformTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+        String service = option("service", "V4");
+        switch (service) {
+            case "V3_1":
+                MemberServiceV3_1 v3_1 = new MemberServiceV3_1(transactionManager, new MemberRepositoryV3(dataSource));
+                return v3_1::accountTransfer;
+            case "V3_3":
+                MemberServiceV3_3 v3_3 = transactional(new MemberServiceV3_3(new MemberRepositoryV3(dataSource)),
+                    transactionManager);
+                return v3_3::accountTransfer;
+            case "V4":
+                MemberServiceV4 v4 = transactional(new MemberServiceV4(createRepository(dataSource)), transactionManager);
+                return v4::accountTransfer;
+            default:
+                throw new IllegalArgumentException("unknown service: " + service);
+        }
+    }
+
+    private MemberRepository createRepository(DataSource dataSource) {
+        String repository = option("repository", "V5");
+        switch (repository) {
+            case "V4_1":
+                return new MemberRepositoryV4_1(dataSource);
+            case "V4_2":
+                return new MemberRepositoryV4_2(dataSource);
+            case "V5":
+                return new MemberRepositoryV5(dataSource);
+            default:
+                throw new IllegalArgumentException("unknown repository: " + repository);
+        }
+    }
+
+    /**
+     * 스프링 컨테이너 없이 @Transactional을 적용한다(스프링 부트가 만드는 프록시와 같은 방식)
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T transactional(T target, PlatformTransactionManager transactionManager) {
+        ProxyFactory proxyFactory = new ProxyFactory(target);
+        proxyFactory.setProxyTargetClass(true); // 서비스는 인터페이스가 없으므로 CGLIB 프록시를 사용한다
+        proxyFactory.addAdvice(new TransactionInterceptor(transactionManager, new AnnotationTransactionAttributeSource()));
+        return (T) proxyFactory.getProxy();
+    }
+
+    private void seed(DataSource dataSource) throws SQLException {
+        try (Connection con = dataSource.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("create table if not exists member ("
+                + "member_id varchar(10), money integer not null default 0, primary key (member_id))");
+            stmt.execute("delete from member where member_id like '" + ID_PREFIX + "%'");
+        }
+        try (Connection con = dataSource.getConnection();
+             PreparedStatement pstmt = con.prepareStatement("insert into member(member_id, money) values (?,?)")) {
+            for (int i = 0; i < accounts; i++) {
+                pstmt.setString(1, ID_PREFIX + i);
+                pstmt.setInt(2, INITIAL_MONEY);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+    }
+
+    private long totalMoney(DataSource dataSource) throws SQLException {
+        try (Connection con = dataSource.getConnection(); Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                 "select coalesce(sum(money), 0) from member where member_id like '" + ID_PREFIX + "%'")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private String option(String key, String defaultValue) {
+        return options.getOrDefault(key, defaultValue);
+    }
+
+    private int intOption(String key, int defaultValue) {
+        return Integer.parseInt(option(key, String.valueOf(defaultValue)));
+    }
+
+    @FunctionalInterface
+    private interface Transfer {
+        void run(String fromId, String toId, int money) throws Exception;
+    }
+
+    /**
+     * 이체할 두 회원을 고른다. 항상 서로 다른 두 회원을 돌려준다
+     */
+    private abstract static class AccountSelector {
+
+        final int accounts;
+
+        AccountSelector(int accounts) {
+            this.accounts = accounts;
+        }
+
+        static AccountSelector of(String distribution, int accounts, double zipfExponent) {
+            switch (distribution) {
+                case "uniform":
+                    return new AccountSelector(accounts) {
+                        @Override
+                        int pick(ThreadLocalRandom random) {
+                            return random.nextInt(accounts);
+                        }
+                    };
+                case "zipfian":
+                    return new ZipfianSelector(accounts, zipfExponent);
+                case "single":
+                    // 모든 이체가 0번 회원과 주고받는다. 방향은 섞어서 양방향 경합을 만든다
+                    return new AccountSelector(accounts) {
+                        @Override
+                        int[] next(ThreadLocalRandom random) {
+                            int other = 1 + random.nextInt(accounts - 1);
+                            return random.nextBoolean() ? new int[] {0, other} : new int[] {other, 0};
+                        }
+
+                        @Override
+                        int pick(ThreadLocalRandom random) {
+                            return 0;
+                        }
+                    };
+                default:
+                    throw new IllegalArgumentException("unknown distribution: " + distribution);
+            }
+        }
+
+        abstract int pick(ThreadLocalRandom random);
+
+        int[] next(ThreadLocalRandom random) {
+            int from = pick(random);
+            int to = pick(random);
+            while (to == from) {
+                to = pick(random);
+            }
+            return new int[] {from, to};
+        }
+    }
+
+    /**
+     * 순위 k인 회원이 1/k^s 에 비례하는 확률로 뽑힌다. 누적 확률을 미리 계산해두고 이분 탐색한다
+     */
+    private static class ZipfianSelector extends AccountSelector {
+
+        private final double[] cumulative;
+
+        ZipfianSelector(int accounts, double exponent) {
+            super(accounts);
+            cumulative = new double[accounts];
+            double sum = 0;
+            for (int k = 0; k < accounts; k++) {
+                sum += 1.0 / Math.pow(k + 1, exponent);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < accounts; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        @Override
+        int pick(ThreadLocalRandom random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(index >= 0 ? index : -index - 1, accounts - 1);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package hello.jdbc;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import hello.jdbc.service.TransferMetricsAspect;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+
+/**
+ * 메트릭 설정 - 이체 메트릭과 MeterBinder 빈을 JMX(jconsole의 metrics 도메인)로 내보낸다
+ *
+ * hello.jdbc.metrics.jmx.enabled=true 일 때만 등록한다
+ * 플랫폼 MBeanServer에 같은 이름으로 등록하므로, 테스트처럼 컨텍스트를 여러 개 만드는 곳에서는 켜지 않는다
+ *
+ * actuator를 사용하지 않으므로 JmxMeterRegistry를 직접 등록한다
+ * MeterBinder 빈(RetryingTransferExecutor 등)은 만들어질 때 registry에 등록한다
+ * accountTransfer()는 TransferMetricsAspect가 기록한다(spring-boot-starter-aop의 자동 프록시)
+ * 리포지토리 메트릭은 리포지토리를 만드는 @Bean 메서드에서 직접 감싼다
+ * 예) return new MetricsMemberRepository(new MemberRepositoryV4_2(dataSource), registry);
+ */
+@Configuration
+@ConditionalOnProperty(name = "hello.jdbc.metrics.jmx.enabled", havingValue = "true")
+public class MetricsConfig {
+
+    @Bean
+    public JmxMeterRegistry jmxMeterRegistry() {
+        return new JmxMeterRegistry(JmxConfig.DEFAULT, Clock.SYSTEM);
+    }
+
+    @Bean
+    public TransferMetricsAspect transferMetricsAspect(MeterRegistry registry) {
+        return new TransferMetricsAspect(registry);
+    }
+
+    /**
+     * BeanPostProcessor는 다른 빈보다 먼저 만들어지므로 static으로 등록하고, registry는 사용할 때 꺼낸다
+     * 빈을 감싸지 않고 registry에 등록만 하므로 빈의 타입은 바뀌지 않는다
+     */
+    @Bean
+    public static BeanPostProcessor meterBinderPostProcessor(ObjectProvider<MeterRegistry> registry) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof MeterBinder && !(bean instanceof MeterRegistry)) {
+                    ((MeterBinder) bean).bindTo(registry.getObject());
+                }
+                return bean;
+            }
+        };
+    }
+}
@@ -0,0 +1,176 @@
+package hello.jdbc.connection;
+
+import static hello.jdbc.connection.PoolEntry.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 커넥션 풀 - 락 없이 커넥션을 빌려주고 돌려받는 보관소
+ * 1. 쓰레드 로컬 목록: 같은 쓰레드가 방금 반납한 커넥션을 경합 없이 다시 쓴다
+ * 2. 공유 목록: 모든 커넥션을 보관하고, CAS로 상태를 바꿔 빌려간다
+ * 3. handoffQueue: 커넥션이 모자랄 때 반납하는 쓰레드가 기다리는 쓰레드에게 직접 넘겨준다
+ */
+class ConnectionBag {
+
+    private static final int THREAD_LIST_MAX_SIZE = 16;
+
+    private final CopyOnWriteArrayList<PoolEntry> sharedList = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<List<PoolEntry>> threadList = ThreadLocal.withInitial(() -> new ArrayList<>(THREAD_LIST_MAX_SIZE));
+    private final SynchronousQueue<PoolEntry> handoffQueue = new SynchronousQueue<>(true);
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * 기다리지 않고 빌려올 수 있는 커넥션을 찾는다. 없으면 null
+     */
+    PoolEntry tryBorrow() {
+        // 1. 이 쓰레드가 최근에 반납한 커넥션부터 찾는다(뒤에서부터 = 가장 최근)
+        List<PoolEntry> list = threadList.get();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            PoolEntry entry = list.remove(i);
+            if (entry.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                return entry;
+            }
+        }
+
+        // 2. 공유 목록에서 사용 중이 아닌 커넥션을 CAS로 가져온다
+        for (PoolEntry entry : sharedList) {
+            if (entry.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 다른 쓰레드가 커넥션을 반납할 때까지 최대 timeoutNanos 만큼 기다린다. 시간 안에 못 받으면 null
+     */
+    PoolEntry poll(long timeoutNanos) throws InterruptedException {
+        // 대기자를 먼저 등록한 뒤 공유 목록을 다시 확인해야 반납과 엇갈려도 커넥션을 놓치지 않는다
+        waiters.incrementAndGet();
+        try {
+            for (PoolEntry entry : sharedList) {
+                if (entry.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                    return entry;
+                }
+            }
+
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (timeoutNanos > 0) {
+                PoolEntry entry = handoffQueue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+                if (entry == null) {
+                    return null;
+                }
+                if (entry.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                    return entry;
+                }
+                timeoutNanos = deadline - System.nanoTime(); // 다른 쓰레드가 먼저 가져갔다. 남은 시간만큼 다시 기다린다
+            }
+            return null;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * 사용이 끝난 커넥션을 돌려받는다
+     */
+    void requite(PoolEntry entry) {
+        entry.markAccessed();
+        if (!entry.compareAndSet(STATE_IN_USE, STATE_NOT_IN_USE)) {
+            return; // 사용 중에 풀에서 제거됐다(abort). 다시 빌려주지 않는다
+        }
+
+        // 기다리는 쓰레드가 있으면 누군가 가져갈 때까지 직접 넘겨준다
+        for (int i = 0; waiters.get() > 0; i++) {
+            if (entry.getState() != STATE_NOT_IN_USE || handoffQueue.offer(entry)) {
+                return;
+            } else if ((i & 0xff) == 0xff) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+            } else {
+                Thread.yield();
+            }
+        }
+
+        List<PoolEntry> list = threadList.get();
+        if (list.size() < THREAD_LIST_MAX_SIZE) {
+            list.add(entry);
+        }
+    }
+
+    /**
+     * 새로 만든 커넥션을 등록한다. 만든 쓰레드가 바로 사용 중인 상태로 등록된다
+     */
+    void add(PoolEntry entry) {
+        sharedList.add(entry);
+    }
+
+    /**
+     * 사용 중인 커넥션을 풀에서 제거한다
+     */
+    boolean remove(PoolEntry entry) {
+        if (!entry.compareAndSet(STATE_IN_USE, STATE_REMOVED)) {
+            return false;
+        }
+        return sharedList.remove(entry);
+    }
+
+    /**
+     * 같은 대여(borrowedAt)가 아직 사용 중일 때만 풀에서 제거한다
+     */
+    boolean removeIfBorrowedAt(PoolEntry entry, long borrowedAt) {
+        if (!entry.markRemovedIfBorrowedAt(borrowedAt)) {
+            return false;
+        }
+        return sharedList.remove(entry);
+    }
+
+    /**
+     * 사용 중이 아닌 커넥션을 모두 꺼낸다(풀 종료 시 사용)
+     */
+    List<PoolEntry> drainIdle() {
+        List<PoolEntry> idle = new ArrayList<>();
+        for (PoolEntry entry : sharedList) {
+            if (entry.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                idle.add(entry);
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * 지금 사용 중인 커넥션 목록(누수 확인용). 확인하는 동안 반납될 수 있다
+     */
+    List<PoolEntry> inUse() {
+        List<PoolEntry> inUse = new ArrayList<>();
+        for (PoolEntry entry : sharedList) {
+            if (entry.getState() == STATE_IN_USE) {
+                inUse.add(entry);
+            }
+        }
+        return inUse;
+    }
+
+    int size() {
+        return sharedList.size();
+    }
+
+    int getCount(int state) {
+        int count = 0;
+        for (PoolEntry entry : sharedList) {
+            if (entry.getState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int getWaitingThreadCount() {
+        return waiters.get();
+    }
+}
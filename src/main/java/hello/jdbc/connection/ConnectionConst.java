@@ -2,7 +2,13 @@ package hello.jdbc.connection;
 
 public abstract class ConnectionConst {
 
-    public static final String URL = "jdbc:h2:tcp://localhost/~/test";
+    public static final String URL = System.getProperty("hello.jdbc.url", "jdbc:h2:tcp://localhost/~/test"); // 벤치마크는 메모리 DB로 바꿔서 실행한다
     public static final String USERNAME = "sa";
     public static final String PASSWORD = "";
+
+    // 커넥션 풀 설정
+    public static final int MINIMUM_IDLE = 2; // 풀이 항상 유지하는 최소 커넥션 수
+    public static final int MAXIMUM_POOL_SIZE = 10; // 풀이 만들 수 있는 최대 커넥션 수
+    public static final long CONNECTION_TIMEOUT_MS = 30_000; // 커넥션을 빌려오기 위해 기다리는 최대 시간
+    public static final int STATEMENT_CACHE_SIZE = 32; // 커넥션 하나당 캐시하는 PreparedStatement 수
 }
@@ -3,20 +3,24 @@ package hello.jdbc.connection;
 import static hello.jdbc.connection.ConnectionConst.*;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
+import javax.sql.DataSource;
+
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class DBConnectionUtil {
 
+    // 매번 DriverManager로 새 커넥션을 만들지 않고 커넥션 풀에서 빌려온다
+    private static final PooledDataSource dataSource = new PooledDataSource(URL, USERNAME, PASSWORD,
+        MINIMUM_IDLE, MAXIMUM_POOL_SIZE, CONNECTION_TIMEOUT_MS);
+
     public static Connection getConnection() {
 
         try {
-            // Connection의 구현체는 org.h2.jdbc.JdbcConnection을 쓴다
-            Connection connection = DriverManager.getConnection(URL, USERNAME, PASSWORD);
-            // Connection 구현체는 h2
+            // 풀에서 빌려온 프록시 커넥션. close()를 호출하면 풀에 반납된다
+            Connection connection = dataSource.getConnection();
             log.info("get connection = {} , class = {}", connection, connection.getClass());
             return connection;
         } catch (SQLException e) {
@@ -24,4 +28,11 @@ public class DBConnectionUtil {
         }
 
     }
+
+    /**
+     * DataSource를 받는 리포지토리(MemberRepositoryV1 등)도 같은 풀을 사용할 수 있다
+     */
+    public static DataSource getDataSource() {
+        return dataSource;
+    }
 }
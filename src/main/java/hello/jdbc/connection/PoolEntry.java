@@ -0,0 +1,143 @@
+package hello.jdbc.connection;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 커넥션 풀 - 풀에 보관되는 물리 커넥션 하나
+ * 상태는 CAS로만 바꾼다. 락 없이 여러 쓰레드가 동시에 빌려가려고 해도 한 쓰레드만 성공한다
+ */
+class PoolEntry {
+
+    static final int STATE_NOT_IN_USE = 0;
+    static final int STATE_IN_USE = 1;
+    static final int STATE_REMOVED = -1;
+
+    private final AtomicInteger state = new AtomicInteger(STATE_IN_USE); // 생성한 쓰레드가 바로 사용한다
+    private final Connection connection; // 실제 물리 커넥션(h2)
+
+    private volatile long lastAccessed = System.nanoTime(); // 마지막으로 반납된 시간
+    private StatementCache statementCache; // 처음 prepareStatement() 할 때 만든다
+
+    // 누수 확인용. 빌려간 동안만 값이 있다
+    private volatile long borrowedAt; // 0이면 빌려간 상태가 아니다(빌려주는 중인 경우 포함)
+    private volatile String borrowerThread;
+    private volatile Throwable borrowStack; // 샘플링할 때만 저장한다
+    private volatile long transactionStartedAt; // 0이면 트랜잭션 중이 아니다
+    private volatile boolean leakReported;
+    private volatile boolean transactionReported;
+
+    PoolEntry(Connection connection) {
+        this.connection = connection;
+    }
+
+    boolean compareAndSet(int expect, int update) {
+        return state.compareAndSet(expect, update);
+    }
+
+    int getState() {
+        return state.get();
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    StatementCache getStatementCache(int maxSize) {
+        if (statementCache == null) {
+            statementCache = new StatementCache(connection, maxSize);
+        }
+        return statementCache;
+    }
+
+    void checkinStatements() {
+        if (statementCache != null) {
+            statementCache.checkinAll();
+        }
+    }
+
+    void clearStatementCache() {
+        if (statementCache != null) {
+            statementCache.clear();
+        }
+    }
+
+    long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    void markAccessed() {
+        lastAccessed = System.nanoTime();
+    }
+
+    void markBorrowed(Throwable stack) {
+        borrowerThread = Thread.currentThread().getName();
+        borrowStack = stack;
+        leakReported = false;
+        transactionReported = false;
+        transactionStartedAt = 0;
+        borrowedAt = System.nanoTime();
+    }
+
+    /**
+     * 빌려간 시간이 borrowedAt 그대로일 때만 사용 중 -> 제거 상태로 바꾼다
+     * markReturned()와 같은 락을 사용하므로, 확인한 뒤 제거하기 전에 반납되거나 다른 쓰레드가 다시 빌려갈 수 없다
+     */
+    synchronized boolean markRemovedIfBorrowedAt(long borrowedAt) {
+        return this.borrowedAt == borrowedAt && state.compareAndSet(STATE_IN_USE, STATE_REMOVED);
+    }
+
+    synchronized void markReturned() {
+        borrowedAt = 0;
+        transactionStartedAt = 0;
+        borrowStack = null;
+    }
+
+    void markTransactionStarted() {
+        if (transactionStartedAt == 0) {
+            transactionStartedAt = System.nanoTime();
+            transactionReported = false;
+        }
+    }
+
+    void markTransactionEnded() {
+        transactionStartedAt = 0;
+    }
+
+    long getBorrowedAt() {
+        return borrowedAt;
+    }
+
+    String getBorrowerThread() {
+        return borrowerThread;
+    }
+
+    Throwable getBorrowStack() {
+        return borrowStack;
+    }
+
+    long getTransactionStartedAt() {
+        return transactionStartedAt;
+    }
+
+    boolean isLeakReported() {
+        return leakReported;
+    }
+
+    void setLeakReported() {
+        leakReported = true;
+    }
+
+    boolean isTransactionReported() {
+        return transactionReported;
+    }
+
+    void setTransactionReported() {
+        transactionReported = true;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolEntry[" + connection + ", state=" + state.get() + "]";
+    }
+}
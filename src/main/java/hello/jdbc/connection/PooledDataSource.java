@@ -0,0 +1,603 @@
+package hello.jdbc.connection;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.support.JdbcUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 커넥션 풀 - DriverManager로 만든 커넥션을 재사용하는 DataSource
+ * 커넥션을 얻을 때: 쓰레드 로컬 목록 -> 공유 목록(CAS) -> 새 커넥션 생성 -> 반납 대기 순서로 찾는다
+ * 커넥션을 닫을 때: 물리 커넥션을 닫지 않고 풀에 반납한다
+ * prepareStatement(sql): 커넥션마다 SQL별로 statement를 캐시해서 재사용한다
+ * 누수 확인: 관리 쓰레드가 오래 반납되지 않은 커넥션과 오래 열린 트랜잭션을 찾아서 경고한다(설정한 경우에만)
+ */
+@Slf4j
+public class PooledDataSource implements DataSource, Closeable {
+
+    private static final long ALIVE_BYPASS_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(500); // 이 시간 안에 반납된 커넥션은 검사 없이 빌려준다
+    private static final long HANDOFF_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // 기다리는 중에도 커넥션을 새로 만들 수 있는지 주기적으로 확인한다
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final long HOUSEKEEPING_PERIOD_MS = 1000; // 누수, 긴 트랜잭션을 확인하는 주기
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int minimumIdle;
+    private final int maximumPoolSize;
+    private final long connectionTimeoutNanos;
+
+    private final ConnectionBag bag = new ConnectionBag();
+    private final AtomicInteger totalConnections = new AtomicInteger(); // 생성 중인 커넥션까지 포함한다
+    private volatile boolean closed;
+
+    // 커넥션 대기 시간 통계
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder borrowWaitNanos = new LongAdder();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+
+    // PreparedStatement 캐시
+    private volatile int statementCacheSize = ConnectionConst.STATEMENT_CACHE_SIZE; // 커넥션 하나당 캐시할 statement 수, 0이면 사용하지 않는다
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+
+    // 누수 확인, 긴 트랜잭션 감시
+    private volatile long leakDetectionThresholdNanos; // 0이면 확인하지 않는다
+    private volatile double borrowStackSampleRate; // 빌려간 위치(stack)를 저장할 비율. 0이면 저장하지 않는다
+    private volatile long maxTransactionNanos; // 0이면 확인하지 않는다
+    private volatile boolean abortLongTransactions;
+    private ScheduledExecutorService housekeeper; // 처음 설정할 때 시작한다
+    private final LongAdder leakCount = new LongAdder();
+    private final LongAdder longTransactionCount = new LongAdder();
+    private final LongAdder abortedTransactionCount = new LongAdder();
+
+    public PooledDataSource(String url, String username, String password) {
+        this(url, username, password, ConnectionConst.MINIMUM_IDLE, ConnectionConst.MAXIMUM_POOL_SIZE,
+            ConnectionConst.CONNECTION_TIMEOUT_MS);
+    }
+
+    public PooledDataSource(String url, String username, String password, int minimumIdle, int maximumPoolSize,
+        long connectionTimeoutMs) {
+        if (maximumPoolSize < 1 || minimumIdle < 0 || minimumIdle > maximumPoolSize) {
+            throw new IllegalArgumentException(
+                "invalid pool size minimumIdle=" + minimumIdle + ", maximumPoolSize=" + maximumPoolSize);
+        }
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.minimumIdle = minimumIdle;
+        this.maximumPoolSize = maximumPoolSize;
+        this.connectionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(connectionTimeoutMs);
+
+        fillPool(); // 최소 커넥션을 미리 만들어 둔다
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("pool is closed");
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + connectionTimeoutNanos;
+        try {
+            while (true) {
+                PoolEntry entry = bag.tryBorrow();
+                if (entry == null) {
+                    entry = createEntry(); // 최대 개수보다 적으면 새로 만든다
+                }
+                if (entry == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new SQLException("connection is not available, request timed out after "
+                            + TimeUnit.NANOSECONDS.toMillis(connectionTimeoutNanos) + "ms (total=" + totalConnections.get()
+                            + ", waiting=" + bag.getWaitingThreadCount() + ")");
+                    }
+                    entry = bag.poll(Math.min(remaining, HANDOFF_SLICE_NANOS)); // 다른 쓰레드가 반납할 때까지 기다린다
+                    if (entry == null) {
+                        continue;
+                    }
+                }
+
+                if (!isAlive(entry)) {
+                    removeEntry(entry); // 끊어진 커넥션은 버리고 다시 찾는다
+                    continue;
+                }
+
+                recordBorrow(System.nanoTime() - start);
+                entry.markBorrowed(sampleBorrowStack());
+                return createProxyConnection(entry);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted during connection acquisition", e);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("pool uses the configured username");
+    }
+
+    /**
+     * 풀이 닫힌 뒤 반납된 커넥션은 실제로 닫는다. 사용 중이 아닌 커넥션은 바로 닫는다
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (housekeeper != null) {
+                housekeeper.shutdownNow();
+            }
+        }
+        for (PoolEntry entry : bag.drainIdle()) {
+            removeEntry(entry);
+        }
+        log.info("pool closed, remaining active connections = {}", bag.size());
+    }
+
+    /**
+     * 프록시 커넥션이 close() 될 때 호출된다
+     */
+    void recycle(PoolEntry entry, boolean broken) {
+        if (closed || broken) {
+            removeEntry(entry);
+            return;
+        }
+        bag.requite(entry);
+    }
+
+    private Connection createProxyConnection(PoolEntry entry) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+            new ProxyConnectionHandler(this, entry));
+    }
+
+    private PoolEntry createEntry() throws SQLException {
+        // CAS로 개수를 먼저 예약한 뒤 커넥션을 만든다. 최대 개수를 넘지 않게 된다
+        while (true) {
+            int total = totalConnections.get();
+            if (total >= maximumPoolSize) {
+                return null;
+            }
+            if (totalConnections.compareAndSet(total, total + 1)) {
+                break;
+            }
+        }
+
+        try {
+            Connection connection = DriverManager.getConnection(url, username, password);
+            PoolEntry entry = new PoolEntry(connection);
+            bag.add(entry);
+            log.debug("new connection = {}, total = {}", connection, totalConnections.get());
+            return entry;
+        } catch (SQLException | RuntimeException e) {
+            totalConnections.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void removeEntry(PoolEntry entry) {
+        if (bag.remove(entry)) {
+            totalConnections.decrementAndGet();
+            entry.clearStatementCache();
+            JdbcUtils.closeConnection(entry.getConnection());
+            log.debug("connection removed = {}, total = {}", entry.getConnection(), totalConnections.get());
+        }
+        if (!closed) {
+            fillPool();
+        }
+    }
+
+    private void fillPool() {
+        while (bag.getCount(PoolEntry.STATE_NOT_IN_USE) < minimumIdle && totalConnections.get() < maximumPoolSize) {
+            try {
+                PoolEntry entry = createEntry();
+                if (entry == null) {
+                    return;
+                }
+                bag.requite(entry);
+            } catch (SQLException e) {
+                log.warn("minimum idle connection fill failed", e); // DB가 아직 떠 있지 않아도 풀 생성은 실패하지 않는다
+                return;
+            }
+        }
+    }
+
+    private boolean isAlive(PoolEntry entry) {
+        if (System.nanoTime() - entry.getLastAccessed() < ALIVE_BYPASS_WINDOW_NANOS) {
+            return true; // 방금 반납된 커넥션은 확인 쿼리 없이 사용한다
+        }
+        try {
+            return entry.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void recordBorrow(long waitNanos) {
+        borrowCount.increment();
+        borrowWaitNanos.add(waitNanos);
+        maxBorrowWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        if (log.isDebugEnabled()) {
+            log.debug("borrow wait = {}us, active = {}, idle = {}", TimeUnit.NANOSECONDS.toMicros(waitNanos),
+                getActiveConnections(), getIdleConnections());
+        }
+    }
+
+    /**
+     * 이 시간보다 오래 반납되지 않은 커넥션을 누수로 의심하고 경고한다. Duration.ZERO면 확인하지 않는다
+     */
+    public void setLeakDetectionThreshold(Duration threshold) {
+        this.leakDetectionThresholdNanos = threshold.toNanos();
+        startHousekeeper();
+    }
+
+    /**
+     * 커넥션을 빌려갈 때 호출 위치(stack)를 저장할 비율(0.0 ~ 1.0)
+     * stack을 만드는 비용이 크므로 평소에는 0으로 두고, 누수를 찾을 때만 올린다
+     */
+    public void setBorrowStackSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate must be between 0 and 1: " + sampleRate);
+        }
+        this.borrowStackSampleRate = sampleRate;
+    }
+
+    /**
+     * setAutoCommit(false) 후 이 시간보다 오래 커밋, 롤백하지 않은 트랜잭션을 경고한다
+     * abort가 true면 커넥션을 끊어서 DB가 트랜잭션을 롤백하고 락을 풀게 한다. 그 커넥션은 풀에서 제거된다
+     */
+    public void setMaxTransactionDuration(Duration maxDuration, boolean abort) {
+        this.maxTransactionNanos = maxDuration.toNanos();
+        this.abortLongTransactions = abort;
+        startHousekeeper();
+    }
+
+    public long getLeakCount() {
+        return leakCount.sum();
+    }
+
+    public long getLongTransactionCount() {
+        return longTransactionCount.sum();
+    }
+
+    public long getAbortedTransactionCount() {
+        return abortedTransactionCount.sum();
+    }
+
+    /**
+     * 사용 중인 커넥션을 확인한다. 관리 쓰레드가 주기적으로 호출한다
+     */
+    void checkConnections() {
+        long now = System.nanoTime();
+        long leakThreshold = leakDetectionThresholdNanos;
+        long maxTransaction = maxTransactionNanos;
+
+        for (PoolEntry entry : bag.inUse()) {
+            long borrowedAt = entry.getBorrowedAt();
+            if (borrowedAt == 0) {
+                continue; // 빌려주는 중이다
+            }
+
+            if (leakThreshold > 0 && !entry.isLeakReported() && now - borrowedAt > leakThreshold) {
+                entry.setLeakReported();
+                leakCount.increment();
+                Throwable stack = entry.getBorrowStack();
+                log.warn("connection leak suspected, held {}ms by thread={}{}",
+                    TimeUnit.NANOSECONDS.toMillis(now - borrowedAt), entry.getBorrowerThread(),
+                    stack == null ? " (enable borrowStackSampleRate to see where)" : "", stack);
+            }
+
+            long transactionStartedAt = entry.getTransactionStartedAt();
+            if (maxTransaction > 0 && transactionStartedAt != 0 && !entry.isTransactionReported()
+                && now - transactionStartedAt > maxTransaction) {
+                entry.setTransactionReported();
+                longTransactionCount.increment();
+                log.warn("long transaction {}ms by thread={}, abort={}",
+                    TimeUnit.NANOSECONDS.toMillis(now - transactionStartedAt), entry.getBorrowerThread(),
+                    abortLongTransactions, entry.getBorrowStack());
+                if (abortLongTransactions) {
+                    abort(entry, borrowedAt);
+                }
+            }
+        }
+    }
+
+    /**
+     * 다른 쓰레드가 사용 중인 커넥션이므로 JDBC abort()로 끊는다
+     * 먼저 풀에서 제거해서 풀 자리를 돌려준다. 사용하던 쓰레드는 다음 호출에서 SQLException을 받는다
+     */
+    private void abort(PoolEntry entry, long borrowedAt) {
+        if (!bag.removeIfBorrowedAt(entry, borrowedAt)) {
+            return; // 그 사이에 반납됐거나 다른 쓰레드가 다시 빌려갔다
+        }
+        totalConnections.decrementAndGet();
+        try {
+            entry.getConnection().abort(Runnable::run);
+        } catch (SQLException e) {
+            log.info("connection abort failed, close instead", e);
+            JdbcUtils.closeConnection(entry.getConnection());
+        }
+        abortedTransactionCount.increment();
+        if (!closed) {
+            fillPool();
+        }
+    }
+
+    private synchronized void startHousekeeper() {
+        if (housekeeper != null || closed) {
+            return;
+        }
+        housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeeper.scheduleWithFixedDelay(() -> {
+            try {
+                checkConnections();
+            } catch (RuntimeException e) {
+                log.warn("housekeeping failed", e); // 예외가 나가면 다음 실행이 취소된다
+            }
+        }, HOUSEKEEPING_PERIOD_MS, HOUSEKEEPING_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private Throwable sampleBorrowStack() {
+        double sampleRate = borrowStackSampleRate;
+        if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            return new Exception("connection borrowed here");
+        }
+        return null;
+    }
+
+    void recordStatementCacheHit() {
+        statementCacheHits.increment();
+    }
+
+    void recordStatementCacheMiss() {
+        statementCacheMisses.increment();
+    }
+
+    /**
+     * 새로 만드는 statement 캐시의 크기. 이미 만들어진 커넥션의 캐시 크기는 바뀌지 않는다
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        if (statementCacheSize < 0) {
+            throw new IllegalArgumentException("statementCacheSize must be >= 0");
+        }
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    public int getActiveConnections() {
+        return bag.getCount(PoolEntry.STATE_IN_USE);
+    }
+
+    public int getIdleConnections() {
+        return bag.getCount(PoolEntry.STATE_NOT_IN_USE);
+    }
+
+    public int getThreadsAwaitingConnection() {
+        return bag.getWaitingThreadCount();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    /**
+     * 커넥션을 빌려오기까지 기다린 시간의 합계
+     */
+    public long getTotalBorrowWaitNanos() {
+        return borrowWaitNanos.sum();
+    }
+
+    public long getMaxBorrowWaitNanos() {
+        return maxBorrowWaitNanos.get();
+    }
+
+    public long getAverageBorrowWaitNanos() {
+        long count = borrowCount.sum();
+        return count == 0 ? 0 : borrowWaitNanos.sum() / count;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return (T) this;
+        }
+        throw new SQLException("DataSource of type [" + getClass().getName() + "] cannot be unwrapped as [" + iface.getName() + "]");
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    @Override
+    public String toString() {
+        return "PooledDataSource[url=" + url + ", total=" + totalConnections.get() + ", active=" + getActiveConnections() + "]";
+    }
+
+    /**
+     * 풀에서 빌려준 커넥션의 프록시
+     * close()를 호출하면 물리 커넥션을 닫지 않고 상태를 되돌린 뒤 풀에 반납한다
+     */
+    static class ProxyConnectionHandler implements InvocationHandler {
+
+        private final PooledDataSource pool;
+        private final PoolEntry entry;
+        private final Connection delegate;
+
+        private boolean closed;
+        private boolean dirtyAutoCommit; // setAutoCommit(false) 로 트랜잭션을 시작했는지
+        private boolean dirtyReadOnly;
+        private int defaultIsolation = -1; // 격리 수준을 바꾼 경우 원래 값
+        private boolean broken; // 네트워크 오류 등으로 더 이상 쓸 수 없는 커넥션
+
+        ProxyConnectionHandler(PooledDataSource pool, PoolEntry entry) {
+            this.pool = pool;
+            this.entry = entry;
+            this.delegate = entry.getConnection();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed || delegate.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + delegate + "]";
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return proxy;
+                    }
+                    break;
+                default:
+            }
+
+            if (closed) {
+                throw new SQLException("connection is closed");
+            }
+
+            if ("prepareStatement".equals(name) && args.length == 1 && pool.statementCacheSize > 0) {
+                // 같은 SQL은 다시 파싱하지 않고 캐시된 statement를 재사용한다
+                PreparedStatement cached = entry.getStatementCache(pool.statementCacheSize)
+                    .checkout((String) args[0], (Connection) proxy, pool);
+                if (cached != null) {
+                    return cached;
+                }
+            } else if ("setAutoCommit".equals(name)) {
+                dirtyAutoCommit = !((Boolean) args[0]);
+                if (dirtyAutoCommit) {
+                    entry.markTransactionStarted();
+                } else {
+                    entry.markTransactionEnded();
+                }
+            } else if ("commit".equals(name) || ("rollback".equals(name) && args == null)) {
+                entry.markTransactionEnded();
+                if (dirtyAutoCommit) {
+                    entry.markTransactionStarted(); // 오토 커밋이 꺼져 있으면 다음 트랜잭션이 바로 시작된다
+                }
+            } else if ("setReadOnly".equals(name)) {
+                dirtyReadOnly = (Boolean) args[0];
+            } else if ("setTransactionIsolation".equals(name) && defaultIsolation == -1) {
+                defaultIsolation = delegate.getTransactionIsolation();
+            }
+
+            try {
+                return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException && isBrokenConnection((SQLException) cause)) {
+                    broken = true;
+                }
+                throw cause;
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return; // 두 번 반납하지 않는다
+            }
+            closed = true;
+            if (entry.isLeakReported()) {
+                log.info("connection previously reported as leaked was returned, thread={}", entry.getBorrowerThread());
+            }
+            entry.markReturned();
+            entry.checkinStatements(); // 닫지 않은 statement도 캐시로 돌려놓는다
+
+            try {
+                // 다음에 빌려가는 쪽이 이전 트랜잭션 상태를 물려받지 않도록 되돌린다
+                if (dirtyAutoCommit && !broken) {
+                    delegate.rollback();
+                    delegate.setAutoCommit(true);
+                }
+                if (dirtyReadOnly && !broken) {
+                    delegate.setReadOnly(false);
+                }
+                if (defaultIsolation != -1 && !broken) {
+                    delegate.setTransactionIsolation(defaultIsolation);
+                }
+            } catch (SQLException e) {
+                log.info("connection reset error", e);
+                broken = true;
+            }
+            pool.recycle(entry, broken);
+        }
+
+        private static boolean isBrokenConnection(SQLException e) {
+            String sqlState = e.getSQLState();
+            return sqlState != null && sqlState.startsWith("08"); // 08: connection exception
+        }
+    }
+}
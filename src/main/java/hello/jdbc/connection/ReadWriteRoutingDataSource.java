@@ -0,0 +1,375 @@
+package hello.jdbc.connection;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 읽기/쓰기 분리 - 읽기 전용 작업은 replica로, 쓰기와 읽기-쓰기 트랜잭션은 primary로 보낸다
+ *
+ * getConnection()은 실제 커넥션 대신 프록시를 돌려주고, 첫 statement를 만들 때 어느 DB를 쓸지 정한다
+ * 1. 읽기 전용 트랜잭션(@Transactional(readOnly = true), setReadOnly(true)) -> replica
+ * 2. 읽기-쓰기 트랜잭션(setAutoCommit(false)) -> primary
+ * 3. 트랜잭션 밖 -> select 문이면 replica, 그 외(insert, update, select ... for update 등)는 primary
+ *
+ * 같은 쓰레드에서 primary에 쓴 뒤 readYourWritesWindow(기본 1초) 동안은 조회도 primary로 보낸다(read-your-writes)
+ * replica는 복제가 늦어서 방금 쓴 값을 아직 모를 수 있기 때문이다. 트랜잭션 안에서 썼으면 커밋한 시간부터 센다
+ * 시간이 지나면 기록은 스스로 사라지므로 풀 쓰레드에 남아도 다른 요청에 영향을 주지 않는다. 요청이 끝날 때 clearRequestState()로 바로 지울 수도 있다
+ *
+ * statement를 만들기 전의 getTransactionIsolation, getHoldability, getCatalog, getSchema는
+ * 처음 연 실제 커넥션에서 읽어 둔 기본값으로 답한다. 이 호출 때문에 primary 커넥션을 열지 않는다
+ *
+ * MemberRepositoryV3, V4_2, V5의 생성자에 DataSource로 그대로 넘기면 된다
+ */
+@Slf4j
+public class ReadWriteRoutingDataSource implements DataSource {
+
+    private static final Pattern SELECT = Pattern.compile("^\\s*select\\b");
+    private static final Pattern WRITE_IN_SELECT = Pattern.compile("\\bfor\\s+update\\b|\\b(old|new|final)\\s+table\\b");
+
+    private final DataSource primary;
+    private final List<DataSource> replicas;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final ThreadLocal<Long> lastWriteAt = new ThreadLocal<>(); // read-your-writes. primary에 쓴 시간(nanoTime)
+    private volatile long readYourWritesWindowNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile ConnectionDefaults defaults; // 처음 연 실제 커넥션의 기본값
+
+    private final LongAdder primaryCount = new LongAdder();
+    private final LongAdder replicaCount = new LongAdder();
+
+    public ReadWriteRoutingDataSource(DataSource primary, List<DataSource> replicas) {
+        this.primary = primary;
+        this.replicas = List.copyOf(replicas);
+    }
+
+    @Override
+    public Connection getConnection() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+            new RoutingConnectionHandler(this));
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("routing data source uses the configured username");
+    }
+
+    /**
+     * primary에 쓴 뒤 조회를 primary로 보낼 시간. replica의 복제 지연보다 길게 잡는다
+     */
+    public void setReadYourWritesWindow(Duration window) {
+        this.readYourWritesWindowNanos = window.toNanos();
+    }
+
+    /**
+     * 요청이 끝나면 호출한다. 이후 조회는 바로 replica로 간다
+     */
+    public void clearRequestState() {
+        lastWriteAt.remove();
+    }
+
+    public long getPrimaryCount() {
+        return primaryCount.sum();
+    }
+
+    public long getReplicaCount() {
+        return replicaCount.sum();
+    }
+
+    /**
+     * 첫 statement를 만들 때 호출된다. sql을 모르면(createStatement 등) null
+     */
+    Connection route(boolean readOnly, boolean autoCommit, String sql) throws SQLException {
+        if (readOnly || TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return replicaOrPrimary();
+        }
+        if (!autoCommit || !isRead(sql)) {
+            markWrite();
+            return primaryConnection();
+        }
+        if (wroteRecently()) {
+            return primaryConnection(); // 방금 쓴 값을 읽어야 한다
+        }
+        return replicaOrPrimary();
+    }
+
+    /**
+     * primary에 쓰거나 primary의 트랜잭션을 커밋할 때 호출된다
+     */
+    void markWrite() {
+        lastWriteAt.set(System.nanoTime());
+    }
+
+    private boolean wroteRecently() {
+        Long writeAt = lastWriteAt.get();
+        if (writeAt == null) {
+            return false;
+        }
+        if (System.nanoTime() - writeAt < readYourWritesWindowNanos) {
+            return true;
+        }
+        lastWriteAt.remove(); // 복제가 따라잡았다
+        return false;
+    }
+
+    ConnectionDefaults getDefaults() {
+        return defaults;
+    }
+
+    /**
+     * 실제 커넥션을 처음 열 때 한 번 읽어 둔다. 모든 DB(primary, replica)의 기본값이 같다고 본다
+     */
+    void rememberDefaults(Connection connection) throws SQLException {
+        if (defaults == null) {
+            defaults = new ConnectionDefaults(connection.getTransactionIsolation(), connection.getHoldability(),
+                connection.getCatalog(), connection.getSchema());
+        }
+    }
+
+    Connection primaryConnection() throws SQLException {
+        primaryCount.increment();
+        return primary.getConnection();
+    }
+
+    /**
+     * replica를 차례대로(round-robin) 사용한다. 모든 replica가 실패하면 primary를 사용한다
+     */
+    private Connection replicaOrPrimary() throws SQLException {
+        int size = replicas.size();
+        int start = Math.floorMod(nextReplica.getAndIncrement(), Math.max(size, 1));
+        for (int i = 0; i < size; i++) {
+            DataSource replica = replicas.get((start + i) % size);
+            try {
+                Connection connection = replica.getConnection();
+                replicaCount.increment();
+                return connection;
+            } catch (SQLException e) {
+                log.warn("replica connection failed, try next replica={}", replica, e);
+            }
+        }
+        return primaryConnection();
+    }
+
+    private static boolean isRead(String sql) {
+        if (sql == null) {
+            return false;
+        }
+        String lower = sql.toLowerCase(Locale.ROOT);
+        return SELECT.matcher(lower).find() && !WRITE_IN_SELECT.matcher(lower).find();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return (T) this;
+        }
+        throw new SQLException("DataSource of type [" + getClass().getName() + "] cannot be unwrapped as [" + iface.getName() + "]");
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    @Override
+    public String toString() {
+        return "ReadWriteRoutingDataSource[primary=" + primary + ", replicas=" + replicas.size() + "]";
+    }
+
+    /**
+     * 실제 커넥션의 기본값. statement를 만들기 전의 조회에 답할 때 사용한다
+     */
+    static class ConnectionDefaults {
+
+        private final int isolation;
+        private final int holdability;
+        private final String catalog;
+        private final String schema;
+
+        ConnectionDefaults(int isolation, int holdability, String catalog, String schema) {
+            this.isolation = isolation;
+            this.holdability = holdability;
+            this.catalog = catalog;
+            this.schema = schema;
+        }
+    }
+
+    /**
+     * 실제 커넥션을 늦게 얻는 프록시
+     * 트랜잭션 매니저가 처음에 호출하는 setAutoCommit, setReadOnly 등은 값만 기억해 두었다가 실제 커넥션에 적용한다
+     */
+    static class RoutingConnectionHandler implements InvocationHandler {
+
+        private final ReadWriteRoutingDataSource dataSource;
+
+        private Connection target;
+        private boolean closed;
+        private boolean autoCommit = true;
+        private boolean readOnly;
+        private int isolation = -1; // 바꾸지 않았으면 -1
+
+        RoutingConnectionHandler(ReadWriteRoutingDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "RoutingConnection[" + target + "]";
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return proxy;
+                    }
+                    break;
+                case "isClosed":
+                    return closed;
+                case "close":
+                    if (closed) {
+                        return null;
+                    }
+                    closed = true;
+                    if (target != null) {
+                        target.close();
+                    }
+                    return null;
+                default:
+            }
+
+            if (closed) {
+                throw new SQLException("connection is closed");
+            }
+
+            if (target == null) {
+                ConnectionDefaults defaults = dataSource.getDefaults();
+                switch (name) {
+                    case "setAutoCommit":
+                        autoCommit = (Boolean) args[0];
+                        return null;
+                    case "getAutoCommit":
+                        return autoCommit;
+                    case "setReadOnly":
+                        readOnly = (Boolean) args[0];
+                        return null;
+                    case "isReadOnly":
+                        return readOnly;
+                    case "setTransactionIsolation":
+                        isolation = (Integer) args[0];
+                        return null;
+                    case "getTransactionIsolation":
+                        if (isolation != -1) {
+                            return isolation;
+                        }
+                        if (defaults != null) {
+                            return defaults.isolation;
+                        }
+                        break;
+                    case "getHoldability":
+                        if (defaults != null) {
+                            return defaults.holdability;
+                        }
+                        break;
+                    case "getCatalog":
+                        if (defaults != null) {
+                            return defaults.catalog;
+                        }
+                        break;
+                    case "getSchema":
+                        if (defaults != null) {
+                            return defaults.schema;
+                        }
+                        break;
+                    case "getWarnings":
+                        return null;
+                    case "clearWarnings":
+                    case "commit":
+                    case "rollback":
+                        return null; // 아직 실행한 statement가 없다
+                    default:
+                }
+                switch (name) {
+                    case "createStatement":
+                    case "prepareStatement":
+                    case "prepareCall":
+                        String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                        open(dataSource.route(readOnly, autoCommit, sql));
+                        break;
+                    default:
+                        // getMetaData 등 기본값으로 답할 수 없는 호출은 primary를 사용한다(뒤에 쓰기가 와도 안전하다)
+                        open(dataSource.primaryConnection());
+                }
+            }
+
+            if ("commit".equals(name) && !readOnly) {
+                dataSource.markWrite(); // 읽기-쓰기 트랜잭션(primary)은 커밋한 뒤부터 복제 지연을 센다
+            }
+
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void open(Connection connection) throws SQLException {
+            target = connection;
+            dataSource.rememberDefaults(connection);
+            if (!autoCommit) {
+                target.setAutoCommit(false);
+            }
+            if (readOnly) {
+                target.setReadOnly(true);
+            }
+            if (isolation != -1) {
+                target.setTransactionIsolation(isolation);
+            }
+        }
+    }
+}
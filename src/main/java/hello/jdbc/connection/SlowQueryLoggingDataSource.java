@@ -0,0 +1,379 @@
+package hello.jdbc.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 느린 쿼리 로그 - 모든 statement 실행 시간을 재고, threshold를 넘으면 SQL, 바인드 값, 실행 시간을 남긴다
+ *
+ * 느린 SQL은 같은 모양(SQL 문자열, 리터럴은 ?로 바꾼다)마다 EXPLAIN 결과를 캐시해둔다
+ * planRefreshInterval이 지난 뒤 다시 느리면 EXPLAIN을 다시 실행해서 실행 계획이 바뀌었는지 확인한다
+ * 인덱스 대신 테이블 전체를 읽는 계획(H2의 tableScan)이 나오면 바로 경고한다
+ * EXPLAIN은 성공한 실행에만, 별도 쓰레드(explainExecutor)에서 별도 커넥션으로 실행한다
+ * 호출한 쪽의 트랜잭션과 응답 시간에 영향을 주지 않는다. 대기 중인 EXPLAIN이 너무 많으면 버린다
+ *
+ * 바인드 값에 개인 정보가 있으면 setRedactBindValues(true)로 값 대신 타입만 남긴다
+ */
+@Slf4j
+public class SlowQueryLoggingDataSource extends DelegatingDataSource {
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    private static final String TABLE_SCAN = "tableScan"; // H2 실행 계획에 나오는 전체 스캔 표시
+
+    private final long thresholdNanos;
+    private volatile long planRefreshIntervalNanos = TimeUnit.MINUTES.toNanos(1);
+    private volatile boolean redactBindValues;
+    private volatile boolean explainEnabled = true;
+    private volatile Executor explainExecutor = defaultExplainExecutor();
+
+    private final Map<String, CachedPlan> plans = new ConcurrentHashMap<>(); // SQL 모양 -> 마지막 실행 계획
+
+    private final AtomicLong statementCount = new AtomicLong();
+    private final AtomicLong slowQueryCount = new AtomicLong();
+    private final AtomicLong planChangeCount = new AtomicLong();
+
+    public SlowQueryLoggingDataSource(DataSource targetDataSource, Duration threshold) {
+        super(targetDataSource);
+        this.thresholdNanos = threshold.toNanos();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return wrap(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return wrap(super.getConnection(username, password));
+    }
+
+    public void setRedactBindValues(boolean redactBindValues) {
+        this.redactBindValues = redactBindValues;
+    }
+
+    public void setExplainEnabled(boolean explainEnabled) {
+        this.explainEnabled = explainEnabled;
+    }
+
+    /**
+     * EXPLAIN을 실행할 executor. 테스트에서는 Runnable::run으로 바로 실행할 수 있다
+     */
+    public void setExplainExecutor(Executor explainExecutor) {
+        this.explainExecutor = explainExecutor;
+    }
+
+    public void setPlanRefreshInterval(Duration planRefreshInterval) {
+        this.planRefreshIntervalNanos = planRefreshInterval.toNanos();
+    }
+
+    /**
+     * 캐시된 실행 계획. 느린 쿼리로 기록된 적이 없으면 null
+     */
+    public String getPlan(String sql) {
+        CachedPlan cached = plans.get(shapeOf(sql));
+        return cached == null ? null : cached.plan;
+    }
+
+    public long getStatementCount() {
+        return statementCount.get();
+    }
+
+    public long getSlowQueryCount() {
+        return slowQueryCount.get();
+    }
+
+    public long getPlanChangeCount() {
+        return planChangeCount.get();
+    }
+
+    private Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+            new ConnectionHandler(this, connection));
+    }
+
+    /**
+     * 실행이 끝난 statement의 시간을 확인한다. 실패한 실행은 기록만 하고 EXPLAIN 하지 않는다
+     */
+    void afterExecute(String sql, Map<Integer, Object> binds, int batchSize, long elapsedNanos, boolean succeeded) {
+        statementCount.incrementAndGet();
+        if (elapsedNanos < thresholdNanos || sql == null) {
+            return;
+        }
+        slowQueryCount.incrementAndGet();
+        log.warn("slow query {}ms sql=[{}] binds={}{}{}", TimeUnit.NANOSECONDS.toMillis(elapsedNanos), sql,
+            formatBinds(binds), batchSize > 0 ? " batchSize=" + batchSize : "", succeeded ? "" : " failed");
+
+        if (explainEnabled && succeeded) {
+            explainIfNeeded(sql, binds);
+        }
+    }
+
+    private void explainIfNeeded(String sql, Map<Integer, Object> binds) {
+        String shape = shapeOf(sql);
+        long now = System.nanoTime();
+        CachedPlan cached = plans.get(shape);
+        if (cached != null && now - cached.explainedAt < planRefreshIntervalNanos) {
+            return; // 최근에 확인했거나 확인 중인 계획이다
+        }
+        // 먼저 시간을 기록해서 같은 모양의 느린 쿼리가 EXPLAIN을 여러 번 요청하지 않게 한다
+        CachedPlan previous = new CachedPlan(cached == null ? null : cached.plan, now);
+        if (cached == null ? plans.putIfAbsent(shape, previous) != null : !plans.replace(shape, cached, previous)) {
+            return; // 다른 쓰레드가 먼저 요청했다
+        }
+
+        try {
+            explainExecutor.execute(() -> updatePlan(shape, sql, binds, previous.plan));
+        } catch (RejectedExecutionException e) {
+            log.debug("explain skipped sql=[{}]", shape); // 다음 refresh 간격에 다시 시도한다
+        }
+    }
+
+    private void updatePlan(String shape, String sql, Map<Integer, Object> binds, String previousPlan) {
+        String plan = explain(sql, binds);
+        if (plan == null) {
+            return; // 실패해도 refresh 간격은 지킨다
+        }
+        plans.put(shape, new CachedPlan(plan, System.nanoTime()));
+
+        if (previousPlan == null) {
+            log.info("explain sql=[{}] plan=[{}]", shape, plan);
+        } else if (!previousPlan.equals(plan)) {
+            planChangeCount.incrementAndGet();
+            log.warn("plan changed sql=[{}] before=[{}] after=[{}]", shape, previousPlan, plan);
+        }
+        if (plan.contains(TABLE_SCAN)) {
+            log.warn("table scan sql=[{}] plan=[{}]", shape, plan);
+        }
+    }
+
+    /**
+     * 대상 DataSource에서 새 커넥션을 얻어 EXPLAIN을 실행한다. 쿼리를 실행하지 않고 계획만 만든다
+     */
+    private String explain(String sql, Map<Integer, Object> binds) {
+        Connection connection = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            connection = obtainTargetDataSource().getConnection();
+            pstmt = connection.prepareStatement("explain " + sql);
+            for (Map.Entry<Integer, Object> bind : binds.entrySet()) {
+                pstmt.setObject(bind.getKey(), bind.getValue());
+            }
+            rs = pstmt.executeQuery();
+            StringBuilder plan = new StringBuilder();
+            while (rs.next()) {
+                plan.append(rs.getString(1).replaceAll("\\s+", " ").trim());
+            }
+            return plan.toString();
+        } catch (SQLException e) {
+            log.debug("explain failed sql=[{}]", sql, e); // DDL 등 EXPLAIN을 지원하지 않는 문장
+            return null;
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(pstmt);
+            JdbcUtils.closeConnection(connection);
+        }
+    }
+
+    private String formatBinds(Map<Integer, Object> binds) {
+        if (!redactBindValues) {
+            return binds.toString();
+        }
+        Map<Integer, Object> redacted = new TreeMap<>();
+        binds.forEach((index, value) ->
+            redacted.put(index, value == null ? null : "<" + value.getClass().getSimpleName() + ">"));
+        return redacted.toString();
+    }
+
+    /**
+     * 리터럴을 ?로 바꾼 SQL 모양. 값만 다른 SQL은 같은 실행 계획으로 본다
+     */
+    static String shapeOf(String sql) {
+        String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+        shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+        return shape.replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * EXPLAIN 전용 쓰레드 하나. 쉬는 동안에는 쓰레드를 남기지 않는다
+     */
+    private static Executor defaultExplainExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(64),
+            runnable -> {
+                Thread thread = new Thread(runnable, "slow-query-explain");
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class CachedPlan {
+
+        private final String plan; // EXPLAIN에 실패하면 null
+        private final long explainedAt;
+
+        CachedPlan(String plan, long explainedAt) {
+            this.plan = plan;
+            this.explainedAt = explainedAt;
+        }
+    }
+
+    /**
+     * 커넥션 프록시 - 만든 statement를 프록시로 감싼다
+     */
+    private static class ConnectionHandler implements InvocationHandler {
+
+        private final SlowQueryLoggingDataSource dataSource;
+        private final Connection delegate;
+
+        ConnectionHandler(SlowQueryLoggingDataSource dataSource, Connection delegate) {
+            this.dataSource = dataSource;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "SlowQueryLoggingConnection[" + delegate + "]";
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return proxy;
+                    }
+                    break;
+                default:
+            }
+
+            Object result = SlowQueryLoggingDataSource.invoke(delegate, method, args);
+            if (result instanceof Statement) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                return wrapStatement((Statement) result, (Connection) proxy, sql);
+            }
+            return result;
+        }
+
+        private Statement wrapStatement(Statement statement, Connection proxy, String sql) {
+            Class<?> type = statement instanceof CallableStatement ? CallableStatement.class
+                : statement instanceof PreparedStatement ? PreparedStatement.class
+                : Statement.class;
+            return (Statement) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                new StatementHandler(dataSource, proxy, statement, sql));
+        }
+    }
+
+    /**
+     * statement 프록시 - 바인드 값을 모으고 execute 계열 메서드의 실행 시간을 잰다
+     */
+    private static class StatementHandler implements InvocationHandler {
+
+        private final SlowQueryLoggingDataSource dataSource;
+        private final Connection proxyConnection;
+        private final Statement delegate;
+        private final String preparedSql; // Statement면 null, execute(sql)의 sql을 사용한다
+
+        private final Map<Integer, Object> binds = new TreeMap<>();
+        private int batchSize;
+
+        StatementHandler(SlowQueryLoggingDataSource dataSource, Connection proxyConnection, Statement delegate,
+            String preparedSql) {
+            this.dataSource = dataSource;
+            this.proxyConnection = proxyConnection;
+            this.delegate = delegate;
+            this.preparedSql = preparedSql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "SlowQueryLoggingStatement[" + delegate + "]";
+                case "getConnection":
+                    return proxyConnection;
+                case "clearParameters":
+                    binds.clear();
+                    break;
+                case "addBatch":
+                    batchSize++;
+                    break;
+                case "clearBatch":
+                    batchSize = 0;
+                    break;
+                case "setNull":
+                    binds.put((Integer) args[0], null); // setNull(1, Types.VARCHAR)의 두 번째 인자는 값이 아니라 타입이다
+                    break;
+                default:
+                    if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                        binds.put((Integer) args[0], args[1]); // setString(1, "memberA"), setInt(2, 10000) ...
+                    }
+            }
+
+            if (!name.startsWith("execute")) {
+                return SlowQueryLoggingDataSource.invoke(delegate, method, args);
+            }
+
+            String sql = preparedSql != null ? preparedSql
+                : args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+            Map<Integer, Object> executedBinds = new TreeMap<>(binds);
+            int executedBatchSize = 0;
+            if ("executeBatch".equals(name) || "executeLargeBatch".equals(name)) {
+                executedBatchSize = batchSize;
+                batchSize = 0;
+            }
+
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                Object result = SlowQueryLoggingDataSource.invoke(delegate, method, args);
+                succeeded = true;
+                return result;
+            } finally {
+                dataSource.afterExecute(sql, executedBinds, executedBatchSize, System.nanoTime() - start, succeeded);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package hello.jdbc.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.jdbc.support.JdbcUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 커넥션 풀 - 물리 커넥션 하나에 묶인 PreparedStatement 캐시
+ * SQL 문자열을 키로 사용하고, 가장 오래 사용하지 않은 statement부터 닫는다(LRU)
+ * 커넥션은 한 번에 한 쓰레드만 빌려가므로 동기화하지 않는다
+ */
+@Slf4j
+class StatementCache {
+
+    private final Connection connection; // 물리 커넥션
+    private final int maxSize;
+    private final LinkedHashMap<String, CachedStatement> cache;
+
+    StatementCache(Connection connection, int maxSize) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true); // accessOrder = true -> LRU 순서
+    }
+
+    /**
+     * 캐시된 statement를 빌려준다. 없으면 새로 준비해서 캐시에 넣는다
+     * @param owner statement.getConnection()이 돌려줄 프록시 커넥션
+     * @return null이면 캐시를 사용할 수 없다(같은 SQL이 이미 사용 중)
+     */
+    PreparedStatement checkout(String sql, Connection owner, PooledDataSource pool) throws SQLException {
+        CachedStatement cached = cache.get(sql);
+        if (cached != null) {
+            if (cached.inUse) {
+                return null; // 같은 SQL을 중첩해서 사용하는 경우는 캐시하지 않는다
+            }
+            pool.recordStatementCacheHit();
+        } else {
+            pool.recordStatementCacheMiss();
+            cached = new CachedStatement(connection.prepareStatement(sql));
+            cache.put(sql, cached);
+            evictIfNecessary();
+        }
+
+        cached.inUse = true;
+        cached.handler = new LogicalStatementHandler(cached, owner);
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+            new Class<?>[] {PreparedStatement.class}, cached.handler);
+    }
+
+    /**
+     * 프록시 커넥션을 반납할 때 닫지 않은 statement를 모두 돌려받는다
+     */
+    void checkinAll() {
+        for (CachedStatement cached : cache.values()) {
+            if (cached.inUse) {
+                cached.handler.closed = true; // 닫지 않고 남겨둔 프록시는 더 이상 사용할 수 없다
+                cached.checkin();
+            }
+        }
+    }
+
+    /**
+     * 물리 커넥션을 닫기 전에 캐시를 비운다
+     */
+    void clear() {
+        for (CachedStatement cached : cache.values()) {
+            JdbcUtils.closeStatement(cached.statement);
+        }
+        cache.clear();
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    private void evictIfNecessary() {
+        Iterator<Map.Entry<String, CachedStatement>> iterator = cache.entrySet().iterator();
+        while (cache.size() > maxSize && iterator.hasNext()) {
+            CachedStatement eldest = iterator.next().getValue();
+            iterator.remove();
+            if (eldest.inUse) {
+                eldest.evicted = true; // 사용 중이면 close() 시점에 닫는다
+            } else {
+                JdbcUtils.closeStatement(eldest.statement);
+            }
+        }
+    }
+
+    private static class CachedStatement {
+
+        private final PreparedStatement statement; // 물리 statement
+        private boolean inUse;
+        private boolean evicted;
+        private boolean batched; // addBatch()를 호출했는지
+        private boolean dirtySettings; // fetchSize 등 설정을 바꿨는지
+        private LogicalStatementHandler handler; // 현재 빌려준 프록시
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        /**
+         * 다음 사용자가 이전 파라미터와 설정을 물려받지 않도록 되돌린다
+         */
+        void checkin() {
+            inUse = false;
+            if (evicted) {
+                JdbcUtils.closeStatement(statement);
+                return;
+            }
+            try {
+                statement.clearParameters();
+                if (batched) {
+                    statement.clearBatch();
+                    batched = false;
+                }
+                if (dirtySettings) {
+                    statement.setFetchSize(0);
+                    statement.setMaxRows(0);
+                    statement.setQueryTimeout(0);
+                    dirtySettings = false;
+                }
+            } catch (SQLException e) {
+                log.info("statement reset error", e);
+                evicted = true;
+                JdbcUtils.closeStatement(statement);
+            }
+        }
+    }
+
+    /**
+     * 빌려준 statement의 프록시
+     * close()를 호출하면 물리 statement를 닫지 않고 파라미터만 지운 뒤 캐시에 돌려놓는다
+     */
+    private static class LogicalStatementHandler implements InvocationHandler {
+
+        private final CachedStatement cached;
+        private final Connection owner;
+        private boolean closed;
+
+        LogicalStatementHandler(CachedStatement cached, Connection owner) {
+            this.cached = cached;
+            this.owner = owner;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        cached.checkin();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || cached.statement.isClosed();
+                case "getConnection":
+                    return owner; // 물리 커넥션을 밖으로 노출하지 않는다
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + cached.statement + "]";
+                case "addBatch":
+                    cached.batched = true;
+                    break;
+                case "setFetchSize":
+                case "setMaxRows":
+                case "setQueryTimeout":
+                    cached.dirtySettings = true;
+                    break;
+                default:
+            }
+
+            if (closed) {
+                throw new SQLException("statement is closed");
+            }
+            try {
+                return method.invoke(cached.statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
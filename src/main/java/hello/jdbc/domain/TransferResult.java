@@ -0,0 +1,11 @@
+package hello.jdbc.domain;
+
+/**
+ * 이체 결과
+ */
+public enum TransferResult {
+
+    SUCCESS, // 이체 성공
+    INSUFFICIENT_FUNDS, // 보내는 회원의 잔액 부족
+    UNKNOWN_MEMBER // 보내는 회원 또는 받는 회원이 없다
+}
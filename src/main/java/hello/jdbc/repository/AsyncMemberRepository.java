@@ -0,0 +1,181 @@
+package hello.jdbc.repository;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 비동기 리포지토리 - 블로킹 MemberRepository 호출을 executor에서 실행하고 CompletableFuture로 돌려준다
+ *
+ * JDBC 호출은 결국 커넥션을 하나씩 잡고 블로킹되므로, 동시에 실행하는 작업 수를 maxConcurrency(커넥션 풀 크기)로 제한한다
+ * executor는 바꿀 수 있다. JDK 21 이상이면 가상 쓰레드, 아니면 커넥션 풀 크기만큼의 쓰레드 풀을 사용한다(create)
+ *
+ * 트랜잭션은 쓰레드에 묶여 있으므로 호출한 쪽의 트랜잭션은 비동기 작업에 전달되지 않는다
+ * 그래서 트랜잭션 안에서 호출하면 예외를 던지고, 이체는 트랜잭션 전체를 한 작업 쓰레드에서 실행한다(transferAsync)
+ *
+ * close()는 create()로 만든 executor만 종료한다. 생성자로 받은 executor는 만든 쪽에서 종료한다
+ */
+@Slf4j
+public class AsyncMemberRepository implements AutoCloseable {
+
+    private final MemberRepository target;
+    private final TransactionTemplate txTemplate;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final boolean ownsExecutor; // close()에서 executor를 종료할지
+
+    public AsyncMemberRepository(MemberRepository target, PlatformTransactionManager transactionManager,
+        ExecutorService executor, int maxConcurrency) {
+        this(target, transactionManager, executor, maxConcurrency, false);
+    }
+
+    private AsyncMemberRepository(MemberRepository target, PlatformTransactionManager transactionManager,
+        ExecutorService executor, int maxConcurrency, boolean ownsExecutor) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.target = target;
+        this.txTemplate = new TransactionTemplate(transactionManager);
+        this.executor = executor;
+        this.permits = new Semaphore(maxConcurrency);
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * 가상 쓰레드를 사용할 수 있으면 가상 쓰레드를, 아니면 maxConcurrency 크기의 쓰레드 풀을 사용한다
+     */
+    public static AsyncMemberRepository create(MemberRepository target, PlatformTransactionManager transactionManager,
+        int maxConcurrency) {
+        ExecutorService executor = isVirtualThreadAvailable()
+            ? virtualThreadExecutor()
+            : platformExecutor(maxConcurrency);
+        return new AsyncMemberRepository(target, transactionManager, executor, maxConcurrency, true);
+    }
+
+    /**
+     * 쓰레드 수가 고정된 풀. 대기 작업이 너무 많이 쌓이면 거절한다
+     */
+    public static ExecutorService platformExecutor(int poolSize) {
+        AtomicInteger sequence = new AtomicInteger();
+        return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(poolSize * 64), runnable -> {
+                Thread thread = new Thread(runnable, "async-member-" + sequence.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * 작업마다 가상 쓰레드를 만든다. 빌드는 Java 11 기준이므로 리플렉션으로 호출한다(JDK 21 이상)
+     */
+    public static ExecutorService virtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads require JDK 21+: " + Runtime.version(), e);
+        }
+    }
+
+    public static boolean isVirtualThreadAvailable() {
+        try {
+            java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    public CompletableFuture<Member> findById(String memberId) {
+        return submit(() -> target.findById(memberId));
+    }
+
+    public CompletableFuture<Map<String, Member>> findByIds(Collection<String> memberIds) {
+        return submit(() -> target.findByIds(memberIds));
+    }
+
+    public CompletableFuture<Member> save(Member member) {
+        return submit(() -> target.save(member));
+    }
+
+    public CompletableFuture<Void> update(String memberId, int money) {
+        return submit(() -> {
+            target.update(memberId, money);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> delete(String memberId) {
+        return submit(() -> {
+            target.delete(memberId);
+            return null;
+        });
+    }
+
+    /**
+     * MemberRepository.transfer()를 한 작업 쓰레드에서 하나의 트랜잭션으로 실행한다
+     * 중간 단계를 thenCompose로 이어 붙이면 단계마다 다른 쓰레드(다른 커넥션)에서 실행되어 트랜잭션이 깨진다
+     * 잔액 부족이나 없는 회원은 예외 대신 결과로 알려준다
+     */
+    public CompletableFuture<TransferResult> transferAsync(String fromId, String toId, int money) {
+        return submit(() -> txTemplate.execute(status -> target.transfer(fromId, toId, money)));
+    }
+
+    /**
+     * create()로 만든 executor면 실행 중인 작업을 마저 끝내고 종료한다
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> work) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            // 작업 쓰레드는 이 트랜잭션에 참여하지 못한다. 커밋되지 않은 변경을 보지 못하고 롤백도 함께 되지 않는다
+            throw new IllegalStateException("AsyncMemberRepository must not be called inside a transaction");
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    permits.acquire(); // 커넥션 풀 크기 이상은 동시에 실행하지 않는다
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    future.completeExceptionally(e);
+                    return;
+                }
+                try {
+                    future.complete(work.get());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.info("async task rejected", e);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,98 @@
+package hello.jdbc.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+import hello.jdbc.domain.Member;
+
+/**
+ * JDBC batch - 여러 건을 batchSize 단위로 나누어 처리할 때 사용하는 공통 기능
+ * 여러 키를 in (...) 한 번으로 조회할 때 사용하는 기능도 함께 둔다
+ */
+abstract class BatchSupport {
+
+    static final int DEFAULT_BATCH_SIZE = 1000; // executeBatch() 한 번에 보내는 최대 건수
+
+    static final int MAX_IN_LIST_SIZE = 512; // in (...) 한 번에 넣는 최대 키 개수. 더 많으면 나누어 조회한다
+
+    static final Comparator<Member> MEMBER_ID_ORDER = Comparator.comparing(Member::getMemberId);
+
+    /**
+     * batchSize 단위로 나눈 뒤 각 묶음 안에서 키 순서로 정렬한다
+     * 인덱스를 순서대로 접근하게 되어 락 순서도 일정해진다. 묶음의 구성(어떤 건이 몇 번째 batch에 들어가는지)은 바뀌지 않는다
+     */
+    static <T> List<T> sortWithinChunks(List<T> items, Comparator<? super T> order, int batchSize) {
+        List<T> sorted = new ArrayList<>(items.size());
+        for (int from = 0; from < items.size(); from += batchSize) {
+            List<T> chunk = new ArrayList<>(items.subList(from, Math.min(from + batchSize, items.size())));
+            chunk.sort(order);
+            sorted.addAll(chunk);
+        }
+        return sorted;
+    }
+
+    /**
+     * 중복을 제거하고 정렬한 키 목록. in (...) 조회를 나눌 때 사용한다
+     */
+    static List<String> distinctSorted(Collection<String> keys) {
+        return new ArrayList<>(new TreeSet<>(keys));
+    }
+
+    /**
+     * in 절의 파라미터 개수를 2의 거듭제곱으로 맞춘다
+     * 키 개수마다 SQL이 달라지면 매번 새로 파싱해야 하므로, SQL 모양을 몇 가지로 제한해 statement를 재사용한다
+     */
+    static int paddedInListSize(int size) {
+        int padded = Integer.highestOneBit(Math.max(size, 1));
+        if (padded < size) {
+            padded <<= 1;
+        }
+        return Math.min(padded, MAX_IN_LIST_SIZE);
+    }
+
+    /**
+     * "(?,?,...,?)" 형태의 in 절. 키 개수는 paddedInListSize()로 맞춘다
+     */
+    static String inClause(int size) {
+        int padded = paddedInListSize(size);
+        StringBuilder sb = new StringBuilder(padded * 2 + 1).append('(');
+        for (int i = 0; i < padded; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * in 절 파라미터를 채운다. 남는 자리는 마지막 키를 반복해서 채운다(결과는 같다)
+     */
+    static void setInParameters(PreparedStatement pstmt, int startIndex, List<String> keys) throws SQLException {
+        int padded = paddedInListSize(keys.size());
+        for (int i = 0; i < padded; i++) {
+            pstmt.setString(startIndex + i, keys.get(Math.min(i, keys.size() - 1)));
+        }
+    }
+
+    /**
+     * executeBatch() 결과에서 처음 실패한 건의 위치를 찾는다. 드라이버가 실패한 곳에서 멈췄다면 결과 개수가 실패 위치가 된다
+     */
+    static int firstFailedIndex(int[] updateCounts) {
+        for (int i = 0; i < updateCounts.length; i++) {
+            if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+                return i;
+            }
+        }
+        return updateCounts.length;
+    }
+
+    static void checkBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package hello.jdbc.repository;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 조회 캐시 - MemberRepository를 감싸서 findById, findByIds를 메모리 캐시에서 돌려준다
+ *
+ * 가장 오래 사용하지 않은 회원부터 지운다(LRU). ttl을 주면 시간이 지난 값은 다시 조회한다
+ * 조회는 ConcurrentHashMap에서 락 없이 읽는다. LRU 순서는 키의 해시로 나눈 segment마다 따로 관리하고,
+ * 조회할 때 segment 락을 바로 얻지 못하면 순서 갱신을 건너뛴다. 자주 조회되는 회원이 있어도 조회끼리 기다리지 않는다
+ * 쓰기는 바로 캐시에서 지우고, 트랜잭션 안이면 커밋(또는 롤백) 후에 한 번 더 지운다
+ * 읽기-쓰기 트랜잭션 안의 조회는 캐시를 사용하지 않는다. 자기가 변경한 값을 읽어야 하기 때문이다
+ */
+@Slf4j
+public class CachingMemberRepository implements MemberRepository {
+
+    private static final int STAMP_STRIPES = 64; // 2의 제곱수
+    private static final int MAX_SEGMENTS = 16; // 2의 제곱수
+    private static final int MIN_SEGMENT_SIZE = 64; // 작은 캐시는 segment를 나누지 않는다(정확한 LRU)
+
+    private final MemberRepository target;
+    private final long ttlNanos; // 0이면 만료하지 않는다
+    private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final Segment[] segments;
+
+    // 키별 무효화 횟수. 조회하는 동안 무효화된 키는 캐시에 넣지 않는다(오래된 값이 다시 들어가는 것을 막는다)
+    private final AtomicLongArray invalidationStamps = new AtomicLongArray(STAMP_STRIPES);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public CachingMemberRepository(MemberRepository target, int maximumSize) {
+        this(target, maximumSize, Duration.ZERO);
+    }
+
+    public CachingMemberRepository(MemberRepository target, int maximumSize, Duration ttl) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        this.target = target;
+        this.ttlNanos = ttl.toNanos();
+        int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(1, maximumSize / MIN_SEGMENT_SIZE)));
+        int segmentSize = (maximumSize + segmentCount - 1) / segmentCount;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    @Override
+    public Member findById(String memberId) {
+        if (!cacheable()) {
+            return target.findById(memberId);
+        }
+
+        Member cached = getCached(memberId);
+        if (cached != null) {
+            hitCount.incrementAndGet();
+            return cached;
+        }
+        missCount.incrementAndGet();
+
+        long stamp = stampOf(memberId);
+        Member member = target.findById(memberId); // 없으면 target의 예외가 그대로 나간다
+        putIfNotInvalidated(member, stamp);
+        return copy(member);
+    }
+
+    @Override
+    public Map<String, Member> findByIds(Collection<String> memberIds) {
+        if (!cacheable()) {
+            return target.findByIds(memberIds);
+        }
+
+        Map<String, Member> result = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String memberId : new LinkedHashSet<>(memberIds)) {
+            Member cached = getCached(memberId);
+            if (cached != null) {
+                result.put(memberId, cached);
+            } else {
+                misses.add(memberId);
+            }
+        }
+        hitCount.addAndGet(result.size());
+        missCount.addAndGet(misses.size());
+        if (misses.isEmpty()) {
+            return result;
+        }
+
+        // 캐시에 없는 회원만 한 번에 조회한다
+        long[] stamps = new long[misses.size()];
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i] = stampOf(misses.get(i));
+        }
+        Map<String, Member> loaded = target.findByIds(misses);
+        for (int i = 0; i < stamps.length; i++) {
+            Member member = loaded.get(misses.get(i));
+            if (member != null) {
+                putIfNotInvalidated(member, stamps[i]);
+                result.put(member.getMemberId(), copy(member));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Member> findByIdsForUpdate(Collection<String> memberIds) {
+        return target.findByIdsForUpdate(memberIds); // 락을 걸어야 하므로 항상 DB에서 조회한다
+    }
+
+    @Override
+    public Stream<Member> streamAll(int fetchSize) {
+        return target.streamAll(fetchSize); // 전체 조회는 캐시하지 않는다
+    }
+
+    @Override
+    public Member save(Member member) {
+        try {
+            return target.save(member);
+        } finally {
+            invalidate(member.getMemberId());
+        }
+    }
+
+    @Override
+    public void update(String memberId, int money) {
+        try {
+            target.update(memberId, money);
+        } finally {
+            invalidate(memberId);
+        }
+    }
+
+    @Override
+    public void delete(String memberId) {
+        try {
+            target.delete(memberId);
+        } finally {
+            invalidate(memberId);
+        }
+    }
+
+    @Override
+    public boolean deleteIfUnchanged(Member expected) {
+        try {
+            return target.deleteIfUnchanged(expected);
+        } finally {
+            invalidate(expected.getMemberId());
+        }
+    }
+
+    @Override
+    public TransferResult transfer(String fromId, String toId, int money) {
+        try {
+            return target.transfer(fromId, toId, money);
+        } finally {
+            invalidate(fromId);
+            invalidate(toId);
+        }
+    }
+
+    @Override
+    public int addMoney(String memberId, int delta) {
+        try {
+            return target.addMoney(memberId, delta);
+        } finally {
+            invalidate(memberId);
+        }
+    }
+
+    @Override
+    public int withdraw(String memberId, int amount) {
+        try {
+            return target.withdraw(memberId, amount);
+        } finally {
+            invalidate(memberId);
+        }
+    }
+
+    @Override
+    public boolean insertIfAbsent(Member member) {
+        try {
+            return target.insertIfAbsent(member);
+        } finally {
+            invalidate(member.getMemberId());
+        }
+    }
+
+    @Override
+    public boolean upsert(Member member) {
+        try {
+            return target.upsert(member);
+        } finally {
+            invalidate(member.getMemberId());
+        }
+    }
+
+    @Override
+    public int insertIfAbsentAll(List<Member> members) {
+        try {
+            return target.insertIfAbsentAll(members);
+        } finally {
+            members.forEach(member -> invalidate(member.getMemberId()));
+        }
+    }
+
+    @Override
+    public int upsertAll(List<Member> members) {
+        try {
+            return target.upsertAll(members);
+        } finally {
+            members.forEach(member -> invalidate(member.getMemberId()));
+        }
+    }
+
+    @Override
+    public void saveAll(List<Member> members) {
+        try {
+            target.saveAll(members);
+        } finally {
+            members.forEach(member -> invalidate(member.getMemberId()));
+        }
+    }
+
+    @Override
+    public void updateAll(List<Member> members) {
+        try {
+            target.updateAll(members);
+        } finally {
+            members.forEach(member -> invalidate(member.getMemberId()));
+        }
+    }
+
+    @Override
+    public void deleteAll(List<String> memberIds) {
+        try {
+            target.deleteAll(memberIds);
+        } finally {
+            memberIds.forEach(this::invalidate);
+        }
+    }
+
+    /**
+     * 캐시를 모두 비운다
+     */
+    public void invalidateAll() {
+        for (int i = 0; i < STAMP_STRIPES; i++) {
+            invalidationStamps.incrementAndGet(i);
+        }
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.order.keySet().forEach(cache::remove);
+                segment.order.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * 읽기-쓰기 트랜잭션 안에서는 캐시를 사용하지 않는다
+     */
+    private boolean cacheable() {
+        return !TransactionSynchronizationManager.isActualTransactionActive()
+            || TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+    }
+
+    private void invalidate(String memberId) {
+        evict(memberId);
+
+        // 트랜잭션이 끝나기 전에 다른 쓰레드가 이전 값을 다시 넣을 수 있으므로 끝난 뒤에 한 번 더 지운다
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    evict(memberId);
+                }
+            });
+        }
+    }
+
+    private void evict(String memberId) {
+        invalidationStamps.incrementAndGet(stripeOf(memberId));
+        Segment segment = segmentOf(memberId);
+        segment.lock.lock();
+        try {
+            segment.order.remove(memberId);
+            cache.remove(memberId);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private Member getCached(String memberId) {
+        CacheEntry entry = cache.get(memberId); // 락 없이 읽는다
+        if (entry == null) {
+            return null;
+        }
+        Segment segment = segmentOf(memberId);
+        if (entry.isExpired(System.nanoTime())) {
+            segment.lock.lock();
+            try {
+                if (segment.order.remove(memberId, entry)) {
+                    cache.remove(memberId, entry);
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+            return null;
+        }
+        // LRU 순서 갱신. 다른 쓰레드가 segment를 사용 중이면 건너뛴다(순서가 조금 부정확해질 뿐이다)
+        if (segment.lock.tryLock()) {
+            try {
+                segment.order.get(memberId);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return copy(entry.member);
+    }
+
+    private void putIfNotInvalidated(Member member, long stamp) {
+        String memberId = member.getMemberId();
+        long expiresAt = ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0;
+        Segment segment = segmentOf(memberId);
+        segment.lock.lock();
+        try {
+            // 조회하는 동안 이 키가 무효화됐다면 조회한 값이 이미 오래된 값일 수 있다
+            if (stampOf(memberId) != stamp) {
+                log.debug("skip caching invalidated memberId={}", memberId);
+                return;
+            }
+            CacheEntry entry = new CacheEntry(copy(member), expiresAt);
+            segment.order.put(memberId, entry);
+            cache.put(memberId, entry);
+
+            Iterator<Map.Entry<String, CacheEntry>> eldest = segment.order.entrySet().iterator();
+            while (segment.order.size() > segment.maximumSize) {
+                String evicted = eldest.next().getKey();
+                eldest.remove();
+                cache.remove(evicted);
+                evictionCount.incrementAndGet();
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private Segment segmentOf(String memberId) {
+        int h = memberId.hashCode() * 0x9E3779B9; // stampOf와 다른 비트를 사용한다
+        return segments[(h >>> 16) & (segments.length - 1)];
+    }
+
+    private long stampOf(String memberId) {
+        return invalidationStamps.get(stripeOf(memberId));
+    }
+
+    private static int stripeOf(String memberId) {
+        int h = memberId.hashCode();
+        return (h ^ (h >>> 16)) & (STAMP_STRIPES - 1);
+    }
+
+    // Member는 변경 가능한 객체이므로 캐시 안의 값을 밖으로 그대로 노출하지 않는다
+    private static Member copy(Member member) {
+        return new Member(member.getMemberId(), member.getMoney());
+    }
+
+    /**
+     * LRU 순서. order와 cache는 segment 락을 잡고 함께 바꾼다
+     */
+    private static class Segment {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<String, CacheEntry> order = new LinkedHashMap<>(16, 0.75f, true); // accessOrder
+        private final int maximumSize;
+
+        Segment(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final Member member;
+        private final long expiresAt; // 0이면 만료하지 않는다
+
+        CacheEntry(Member member, long expiresAt) {
+            this.member = member;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && now - expiresAt >= 0;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package hello.jdbc.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 일관된 해시(consistent hashing) - 키를 샤드에 나눈다
+ *
+ * 샤드마다 virtualNodes 개의 점을 원(0 ~ 2^64) 위에 놓고, 키의 해시에서 시계 방향으로 처음 만나는 점의 샤드를 사용한다
+ * 샤드를 하나 추가해도 새 샤드가 가져가는 키(약 1/N)만 이동한다. 나머지 키는 원래 샤드에 남는다
+ */
+class ConsistentHashRing {
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    ConsistentHashRing(Collection<String> shardNames, int virtualNodes) {
+        if (shardNames.isEmpty()) {
+            throw new IllegalArgumentException("at least one shard is required");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive: " + virtualNodes);
+        }
+        for (String shardName : shardNames) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(shardName + "#" + i), shardName);
+            }
+        }
+    }
+
+    String shardFor(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue(); // 원의 끝을 넘으면 처음으로 돌아간다
+    }
+
+    /**
+     * FNV-1a 64비트 해시에 비트를 한 번 더 섞는다. 비슷한 키(memberA, memberB)도 원 위에 고르게 흩어진다
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
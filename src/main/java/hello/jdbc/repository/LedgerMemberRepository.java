@@ -0,0 +1,421 @@
+package hello.jdbc.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import org.springframework.dao.DuplicateKeyException;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+
+/**
+ * 메모리 원장 - DB 없이 프로세스 안에서 잔액을 관리하는 MemberRepository
+ *
+ * 회원 id와 잔액을 String[], int[] 두 배열에 open addressing(linear probing)으로 저장한다
+ * Integer, Member 객체를 회원마다 만들지 않고, Member는 조회 결과를 돌려줄 때만 만든다
+ *
+ * 락은 두 종류다
+ * 1. stripe 락: 회원 id의 해시로 고른 락. 잔액을 읽고 바꿀 때는 이 락만 잡는다
+ * 2. structureLock: 회원 추가, 삭제, 테이블 크기 변경. 테이블 크기를 바꿀 때는 모든 stripe 락도 잡는다
+ * 잔액 변경은 다른 stripe와 경합하지 않으므로 쓰레드 수만큼 처리량이 늘어난다
+ *
+ * 스프링 트랜잭션에 참여하지 않는다. 메서드 하나가 원자적으로 실행되므로 이체는 findById + update 대신 transfer()를 사용한다
+ * findByIdsForUpdate()도 락을 유지하지 않는다. 조회한 값으로 update 하는 대신 addMoney(), withdraw(), deleteIfUnchanged()를 사용한다
+ * 프로세스가 끝나면 데이터가 사라진다
+ */
+public class LedgerMemberRepository implements MemberRepository {
+
+    private static final String TOMBSTONE = new String("<deleted>"); // 삭제된 칸. == 로 비교한다
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int DEFAULT_STRIPES = 256;
+
+    private final ReentrantLock[] stripes;
+    private final int stripeMask;
+    private final ReentrantLock structureLock = new ReentrantLock();
+
+    // stripe 락 또는 structureLock을 잡고 읽는다. 크기를 바꿀 때는 둘 다 잡고 바꾼다
+    private String[] keys;
+    private int[] balances;
+    private int size; // 회원 수
+    private int used; // 회원 수 + 삭제된 칸(TOMBSTONE). null인 칸이 남아 있어야 탐색이 끝난다
+
+    public LedgerMemberRepository() {
+        this(DEFAULT_CAPACITY, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param initialCapacity 예상 회원 수. 칸은 그 두 배를 만든다
+     * @param stripeCount 잔액 락의 수. 2의 제곱수로 올림한다
+     */
+    public LedgerMemberRepository(int initialCapacity, int stripeCount) {
+        if (initialCapacity <= 0 || stripeCount <= 0) {
+            throw new IllegalArgumentException(
+                "initialCapacity and stripeCount must be positive: " + initialCapacity + ", " + stripeCount);
+        }
+        int stripeSize = powerOfTwo(stripeCount);
+        this.stripes = new ReentrantLock[stripeSize];
+        for (int i = 0; i < stripeSize; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.stripeMask = stripeSize - 1;
+        this.keys = new String[powerOfTwo(initialCapacity * 2)];
+        this.balances = new int[keys.length];
+    }
+
+    @Override
+    public Member save(Member member) {
+        if (!insertIfAbsent(member)) {
+            throw new DuplicateKeyException("member already exists memberId=" + member.getMemberId());
+        }
+        return member;
+    }
+
+    @Override
+    public Member findById(String memberId) {
+        int hash = hash(memberId);
+        ReentrantLock stripe = stripeOf(hash);
+        stripe.lock();
+        try {
+            int slot = indexOf(memberId, hash);
+            if (slot < 0) {
+                throw new NoSuchElementException("member not found memberId=" + memberId);
+            }
+            return new Member(memberId, balances[slot]);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Member> findByIds(Collection<String> memberIds) {
+        Map<String, Member> result = new HashMap<>();
+        for (String memberId : new LinkedHashSet<>(memberIds)) {
+            int hash = hash(memberId);
+            ReentrantLock stripe = stripeOf(hash);
+            stripe.lock();
+            try {
+                int slot = indexOf(memberId, hash);
+                if (slot >= 0) {
+                    result.put(memberId, new Member(memberId, balances[slot]));
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 트랜잭션에 참여하지 않으므로 락을 걸어둘 수 없다. 회원마다 stripe 락을 잡고 읽은 값을 member_id 순서로 돌려줄 뿐이다
+     * 돌려준 뒤에는 다른 쓰레드가 잔액을 바꿀 수 있으므로, 조회 후 update 하는 대신 transfer(), addMoney(), withdraw()를 사용한다
+     */
+    @Override
+    public Map<String, Member> findByIdsForUpdate(Collection<String> memberIds) {
+        Map<String, Member> found = findByIds(memberIds);
+        Map<String, Member> result = new LinkedHashMap<>();
+        for (String memberId : BatchSupport.distinctSorted(found.keySet())) {
+            result.put(memberId, found.get(memberId));
+        }
+        return result;
+    }
+
+    /**
+     * 호출한 시점의 회원 목록을 복사해서 돌려준다. 회원마다 잔액은 그 회원의 stripe 락을 잡고 읽는다
+     */
+    @Override
+    public Stream<Member> streamAll(int fetchSize) {
+        List<Member> members;
+        structureLock.lock();
+        try {
+            members = new ArrayList<>(size);
+            for (int slot = 0; slot < keys.length; slot++) {
+                String key = keys[slot];
+                if (key == null || key == TOMBSTONE) {
+                    continue;
+                }
+                ReentrantLock stripe = stripeOf(hash(key));
+                stripe.lock();
+                try {
+                    members.add(new Member(key, balances[slot]));
+                } finally {
+                    stripe.unlock();
+                }
+            }
+        } finally {
+            structureLock.unlock();
+        }
+        return members.stream();
+    }
+
+    @Override
+    public void update(String memberId, int money) {
+        int hash = hash(memberId);
+        ReentrantLock stripe = stripeOf(hash);
+        stripe.lock();
+        try {
+            int slot = indexOf(memberId, hash);
+            if (slot >= 0) {
+                balances[slot] = money; // 없는 회원이면 JDBC 구현체처럼 아무것도 바꾸지 않는다
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public int addMoney(String memberId, int delta) {
+        int hash = hash(memberId);
+        ReentrantLock stripe = stripeOf(hash);
+        stripe.lock();
+        try {
+            int slot = indexOf(memberId, hash);
+            if (slot < 0) {
+                return 0;
+            }
+            balances[slot] = Math.addExact(balances[slot], delta);
+            return 1;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public int withdraw(String memberId, int amount) {
+        int hash = hash(memberId);
+        ReentrantLock stripe = stripeOf(hash);
+        stripe.lock();
+        try {
+            int slot = indexOf(memberId, hash);
+            if (slot < 0 || balances[slot] < amount) {
+                return 0;
+            }
+            balances[slot] -= amount;
+            return 1;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * 두 회원의 stripe 락을 stripe 번호 순서로 잡는다
+     * A->B, B->A 이체가 동시에 실행되어도 같은 순서로 잠그므로 데드락이 생기지 않는다
+     */
+    @Override
+    public TransferResult transfer(String fromId, String toId, int money) {
+        TransferSupport.validate(fromId, toId, money);
+
+        int fromHash = hash(fromId);
+        int toHash = hash(toId);
+        int fromStripe = fromHash & stripeMask;
+        int toStripe = toHash & stripeMask;
+        ReentrantLock first = stripes[Math.min(fromStripe, toStripe)];
+        ReentrantLock second = stripes[Math.max(fromStripe, toStripe)];
+
+        first.lock();
+        try {
+            if (second != first) {
+                second.lock();
+            }
+            try {
+                int fromSlot = indexOf(fromId, fromHash);
+                int toSlot = indexOf(toId, toHash);
+                if (fromSlot < 0 || toSlot < 0) {
+                    return TransferResult.UNKNOWN_MEMBER;
+                }
+                if (balances[fromSlot] < money) {
+                    return TransferResult.INSUFFICIENT_FUNDS;
+                }
+                int credited = Math.addExact(balances[toSlot], money); // 넘치면 어느 쪽도 바꾸지 않는다
+                balances[fromSlot] -= money;
+                balances[toSlot] = credited;
+                return TransferResult.SUCCESS;
+            } finally {
+                if (second != first) {
+                    second.unlock();
+                }
+            }
+        } finally {
+            first.unlock();
+        }
+    }
+
+    @Override
+    public boolean insertIfAbsent(Member member) {
+        return put(member.getMemberId(), member.getMoney(), false);
+    }
+
+    @Override
+    public boolean upsert(Member member) {
+        return put(member.getMemberId(), member.getMoney(), true);
+    }
+
+    @Override
+    public void delete(String memberId) {
+        remove(memberId, false, 0);
+    }
+
+    @Override
+    public boolean deleteIfUnchanged(Member expected) {
+        return remove(expected.getMemberId(), true, expected.getMoney());
+    }
+
+    private boolean remove(String memberId, boolean checkBalance, int expectedBalance) {
+        int hash = hash(memberId);
+        structureLock.lock();
+        try {
+            ReentrantLock stripe = stripeOf(hash);
+            stripe.lock();
+            try {
+                int slot = indexOf(memberId, hash);
+                if (slot < 0 || checkBalance && balances[slot] != expectedBalance) {
+                    return false;
+                }
+                keys[slot] = TOMBSTONE; // null로 바꾸면 뒤에 있는 회원을 찾지 못한다
+                balances[slot] = 0;
+                size--;
+                return true;
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    public int getSize() {
+        structureLock.lock();
+        try {
+            return size;
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * @return 새로 저장했으면 true
+     */
+    private boolean put(String memberId, int money, boolean overwrite) {
+        int hash = hash(memberId);
+        structureLock.lock();
+        try {
+            ensureCapacity(); // 모든 stripe 락을 잡으므로 회원의 stripe 락보다 먼저 호출한다
+            ReentrantLock stripe = stripeOf(hash);
+            stripe.lock();
+            try {
+                int slot = indexOf(memberId, hash);
+                if (slot >= 0) {
+                    if (overwrite) {
+                        balances[slot] = money;
+                    }
+                    return false;
+                }
+                insert(keys, balances, memberId, money, hash);
+                size++;
+                return true;
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * 칸의 절반 이상을 쓰면 테이블을 다시 만든다. 삭제된 칸이 대부분이면 크기는 그대로 두고 정리만 한다
+     * structureLock을 잡고 호출한다
+     */
+    private void ensureCapacity() {
+        if ((used + 1) * 2 <= keys.length) {
+            return;
+        }
+        int capacity = (size + 1) * 4 <= keys.length ? keys.length : keys.length * 2;
+
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            String[] newKeys = new String[capacity];
+            int[] newBalances = new int[capacity];
+            for (int slot = 0; slot < keys.length; slot++) {
+                String key = keys[slot];
+                if (key != null && key != TOMBSTONE) {
+                    insert(newKeys, newBalances, key, balances[slot], hash(key));
+                }
+            }
+            keys = newKeys;
+            balances = newBalances;
+            used = size;
+        } finally {
+            for (ReentrantLock stripe : stripes) {
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * 빈 칸(null)에 넣는다. 삭제된 칸은 재사용하지 않고 ensureCapacity()에서 정리한다
+     */
+    private void insert(String[] targetKeys, int[] targetBalances, String memberId, int money, int hash) {
+        int mask = targetKeys.length - 1;
+        int slot = hash & mask;
+        while (targetKeys[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        targetBalances[slot] = money;
+        targetKeys[slot] = memberId;
+        if (targetKeys == keys) {
+            used++;
+        }
+    }
+
+    /**
+     * 회원의 stripe 락을 잡고 호출한다. 없으면 -1
+     *
+     * 다른 stripe의 회원이 동시에 추가, 삭제될 수 있지만 칸은 null -> 회원 -> TOMBSTONE 순서로만 바뀐다
+     * 찾는 회원보다 앞에 있는 칸은 이미 null이 아니므로 탐색 결과가 달라지지 않는다
+     */
+    private int indexOf(String memberId, int hash) {
+        String[] table = keys;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (int probe = 0; probe < table.length; probe++) {
+            String key = table[slot];
+            if (key == null) {
+                return -1;
+            }
+            if (key != TOMBSTONE && key.equals(memberId)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private ReentrantLock stripeOf(int hash) {
+        return stripes[hash & stripeMask];
+    }
+
+    /**
+     * String.hashCode()의 비트를 섞는다. "m1", "m2" 처럼 비슷한 id가 연속된 칸에 몰리지 않게 한다
+     */
+    private static int hash(String memberId) {
+        int h = memberId.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int powerOfTwo(int value) {
+        int result = Integer.highestOneBit(Math.max(value - 1, 1)) << 1;
+        if (result <= 0) {
+            throw new IllegalArgumentException("capacity too large: " + value);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,212 @@
+package hello.jdbc.repository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.support.JdbcUtils;
+
+import hello.jdbc.repository.ex.ErrorCodeExceptionTranslator;
+import hello.jdbc.repository.ex.ExceptionTranslatorRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 회원 ID 생성기 - DB 시퀀스에서 번호를 묶음(block)으로 받아두고 메모리에서 하나씩 나누어 준다(hi-lo)
+ *
+ * 시퀀스 번호는 DB가 한 번만 나누어 주므로 여러 서버, 여러 쓰레드에서 생성해도 ID가 겹치지 않는다
+ * 받아둔 번호가 남아있는 동안은 DB에 가지 않고 AtomicLong 증가만으로 ID를 만든다
+ * 묶음을 너무 자주 다시 받으면 묶음 크기를 두 배로 늘리고, 오랫동안 다 쓰지 못하면 절반으로 줄인다
+ *
+ * 주의: 서버가 내려가면 받아두고 쓰지 않은 번호는 버려진다(ID 중간이 비어도 괜찮은 경우에 사용한다)
+ */
+@Slf4j
+public class MemberIdGenerator {
+
+    private static final int MAX_ID_LENGTH = 10; // member_id varchar(10)
+    private static final long GROW_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1); // 이보다 빨리 다 쓰면 늘린다
+    private static final long SHRINK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60); // 이보다 오래 걸리면 줄인다
+
+    private final DataSource dataSource;
+    private final ErrorCodeExceptionTranslator exTranslator;
+    private final String prefix;
+    private final String sequenceName;
+    private final int minBlockSize;
+    private final int maxBlockSize;
+
+    private volatile Block current = Block.EMPTY;
+    private final ArrayDeque<Block> reserved = new ArrayDeque<>(); // 받아두었지만 아직 쓰지 않은 묶음(refill 락 안에서만 사용)
+    private final Object refillLock = new Object();
+    private boolean sequenceReady;
+    private int blockSize;
+    private long lastRefillNanos;
+    private final AtomicLong refillCount = new AtomicLong();
+
+    public MemberIdGenerator(DataSource dataSource, String prefix) {
+        this(dataSource, prefix, "member_seq", 16, 4096);
+    }
+
+    public MemberIdGenerator(DataSource dataSource, String prefix, String sequenceName, int minBlockSize,
+        int maxBlockSize) {
+        if (minBlockSize <= 0 || maxBlockSize < minBlockSize) {
+            throw new IllegalArgumentException("invalid block size: min=" + minBlockSize + ", max=" + maxBlockSize);
+        }
+        if (prefix.length() >= MAX_ID_LENGTH) {
+            throw new IllegalArgumentException("prefix is too long: " + prefix);
+        }
+        this.dataSource = dataSource;
+        this.exTranslator = ExceptionTranslatorRegistry.getTranslator(dataSource);
+        this.prefix = prefix;
+        this.sequenceName = sequenceName;
+        this.minBlockSize = minBlockSize;
+        this.maxBlockSize = maxBlockSize;
+        this.blockSize = minBlockSize;
+    }
+
+    /**
+     * 새 회원 ID. 예) prefix가 "m"이면 m1, m2, ...
+     */
+    public String nextId() {
+        String id = prefix + nextValue();
+        if (id.length() > MAX_ID_LENGTH) {
+            throw new IllegalStateException("member id exceeds " + MAX_ID_LENGTH + " characters: " + id);
+        }
+        return id;
+    }
+
+    public long nextValue() {
+        while (true) {
+            Block block = current;
+            long value = block.next.getAndIncrement();
+            if (value < block.end) {
+                return value; // 대부분 여기서 끝난다
+            }
+            refill(block);
+        }
+    }
+
+    public int getBlockSize() {
+        synchronized (refillLock) {
+            return blockSize;
+        }
+    }
+
+    public long getRefillCount() {
+        return refillCount.get();
+    }
+
+    /**
+     * 다 쓴 묶음(exhausted)을 새 묶음으로 바꾼다. 다른 쓰레드가 먼저 바꿨으면 아무것도 하지 않는다
+     */
+    private void refill(Block exhausted) {
+        synchronized (refillLock) {
+            if (current != exhausted) {
+                return;
+            }
+            if (reserved.isEmpty()) {
+                adjustBlockSize();
+                reserve(blockSize);
+            }
+            current = reserved.poll();
+        }
+    }
+
+    private void adjustBlockSize() {
+        long now = System.nanoTime();
+        if (lastRefillNanos != 0) {
+            long elapsed = now - lastRefillNanos;
+            if (elapsed < GROW_INTERVAL_NANOS && blockSize < maxBlockSize) {
+                blockSize = Math.min(maxBlockSize, blockSize * 2);
+                log.info("grow id block size={}", blockSize);
+            } else if (elapsed > SHRINK_INTERVAL_NANOS && blockSize > minBlockSize) {
+                blockSize = Math.max(minBlockSize, blockSize / 2);
+                log.info("shrink id block size={}", blockSize);
+            }
+        }
+        lastRefillNanos = now;
+    }
+
+    /**
+     * 시퀀스에서 size 개의 번호를 한 번의 쿼리로 받는다
+     * 다른 서버가 동시에 받으면 번호가 섞여서 올 수 있으므로, 연속된 번호끼리 묶어서 저장한다
+     */
+    private void reserve(int size) {
+        String sql = "select next value for " + sequenceName + " from system_range(1, ?)";
+
+        // 호출한 쪽의 트랜잭션과 상관없이 별도의 커넥션을 사용한다(시퀀스는 롤백되지 않는다)
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            con = dataSource.getConnection();
+            createSequenceIfAbsent(con);
+            pstmt = con.prepareStatement(sql);
+            pstmt.setInt(1, size);
+            rs = pstmt.executeQuery();
+
+            long start = -1;
+            long end = -1;
+            while (rs.next()) {
+                long value = rs.getLong(1);
+                if (value != end) {
+                    if (start >= 0) {
+                        reserved.add(new Block(start, end));
+                    }
+                    start = value;
+                }
+                end = value + 1;
+            }
+            if (start < 0) {
+                throw new IllegalStateException("sequence returned no values: " + sequenceName);
+            }
+            reserved.add(new Block(start, end));
+            refillCount.incrementAndGet();
+            log.info("reserve id block sequence={}, size={}, first={}", sequenceName, size, reserved.peek().start);
+        } catch (SQLException e) {
+            throw exTranslator.translateToRuntime("reserveIdBlock", sql, e);
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(pstmt);
+            JdbcUtils.closeConnection(con);
+        }
+    }
+
+    private void createSequenceIfAbsent(Connection con) throws SQLException {
+        if (sequenceReady) {
+            return;
+        }
+        Statement stmt = null;
+        try {
+            stmt = con.createStatement();
+            stmt.execute("create sequence if not exists " + sequenceName);
+            sequenceReady = true;
+        } finally {
+            JdbcUtils.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * [start, end) 범위의 번호. next가 end 이상이면 다 쓴 것이다
+     */
+    private static class Block {
+
+        static final Block EMPTY = new Block(0, 0);
+
+        final long start;
+        final long end;
+        final AtomicLong next;
+
+        Block(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.next = new AtomicLong(start);
+        }
+    }
+}
@@ -1,8 +1,19 @@
 package hello.jdbc.repository;
 
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+import org.springframework.dao.DuplicateKeyException;
 
 import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+import hello.jdbc.repository.ex.MyDuplicateKeyException;
 
 public interface MemberRepository {
 
@@ -10,4 +21,134 @@ public interface MemberRepository {
     Member findById(String memberId);
     void update(String memberId, int money);
     void delete(String memberId);
+
+    /**
+     * 여러 건을 한 번에 조회한다. 없는 memberId는 결과에 들어가지 않는다
+     * 기본 구현은 한 건씩 조회하므로 구현체에서 한 번의 쿼리로 바꿔야 한다
+     */
+    default Map<String, Member> findByIds(Collection<String> memberIds) {
+        Map<String, Member> result = new HashMap<>();
+        for (String memberId : new LinkedHashSet<>(memberIds)) {
+            try {
+                result.put(memberId, findById(memberId));
+            } catch (NoSuchElementException e) {
+                // 없는 회원은 결과에서 빠진다
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 여러 건을 조회하면서 row 락을 건다(select ... for update). 반드시 트랜잭션 안에서 호출해야 한다
+     * 항상 member_id 순서로 잠그므로 A->B, B->A 이체가 동시에 실행되어도 데드락이 생기지 않는다
+     * @return member_id 순서로 정렬된 결과. 없는 memberId는 결과에 들어가지 않는다
+     */
+    Map<String, Member> findByIdsForUpdate(Collection<String> memberIds);
+
+    /**
+     * 전체 회원을 커서로 한 건씩 읽는다. fetchSize 만큼씩 DB에서 가져오므로 전체를 메모리에 올리지 않는다
+     * 반환된 Stream은 커넥션을 잡고 있으므로 반드시 close 해야 한다(try-with-resources 사용)
+     */
+    Stream<Member> streamAll(int fetchSize);
+
+    /**
+     * 잔액 확인, 출금, 입금을 원자적으로 처리한다
+     * DB를 사용하는 구현체는 한 번의 update 문으로 처리하고, 트랜잭션 밖에서 호출하면 직접 트랜잭션을 시작한다
+     */
+    TransferResult transfer(String fromId, String toId, int money);
+
+    /**
+     * 현재 잔액에 delta를 더한다(음수면 뺀다). 조회한 값을 덮어쓰지 않으므로 동시에 실행해도 갱신이 유실되지 않는다
+     * @return 변경된 row 수. 0이면 회원이 없다
+     */
+    int addMoney(String memberId, int delta);
+
+    /**
+     * 잔액이 amount 이상일 때만 출금한다
+     * @return 변경된 row 수. 0이면 회원이 없거나 잔액이 부족하다
+     */
+    int withdraw(String memberId, int amount);
+
+    /**
+     * 같은 memberId가 없을 때만 저장한다. 이미 있으면 아무것도 바꾸지 않는다
+     * @return 새로 저장했으면 true
+     *
+     * 기본 구현은 조회 후 save 한다. 그 사이에 다른 쪽이 먼저 저장하면 키 중복 예외를 false로 바꾼다
+     */
+    default boolean insertIfAbsent(Member member) {
+        if (findByIds(List.of(member.getMemberId())).containsKey(member.getMemberId())) {
+            return false;
+        }
+        try {
+            save(member);
+            return true;
+        } catch (DuplicateKeyException | MyDuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 있으면 잔액을 바꾸고, 없으면 저장한다. 조회 후 저장하는 두 번의 왕복 대신 한 번의 쿼리로 처리한다
+     * @return 새로 저장했으면 true
+     *
+     * 기본 구현은 insertIfAbsent 후 이미 있으면 update 한다(두 번의 왕복)
+     */
+    default boolean upsert(Member member) {
+        if (insertIfAbsent(member)) {
+            return true;
+        }
+        update(member.getMemberId(), member.getMoney());
+        return false;
+    }
+
+    /**
+     * 잔액이 expected와 같을 때만 지운다. 읽은 뒤 다른 쪽이 바꾸거나 지우지 않았을 때만 지워야 하는 경우에 사용한다(샤드 이동 등)
+     * @return 지웠으면 true
+     */
+    boolean deleteIfUnchanged(Member expected);
+
+    /**
+     * @return 새로 저장한 건수
+     */
+    default int insertIfAbsentAll(List<Member> members) {
+        int created = 0;
+        for (Member member : members) {
+            if (insertIfAbsent(member)) {
+                created++;
+            }
+        }
+        return created;
+    }
+
+    /**
+     * @return 새로 저장한 건수
+     */
+    default int upsertAll(List<Member> members) {
+        int created = 0;
+        for (Member member : members) {
+            if (upsert(member)) {
+                created++;
+            }
+        }
+        return created;
+    }
+
+    // 여러 건을 한 번에 처리한다. 기본 구현은 한 건씩 처리하므로 구현체에서 JDBC batch로 바꿔야 한다
+    default void saveAll(List<Member> members) {
+        for (Member member : members) {
+            save(member);
+        }
+    }
+
+    default void updateAll(List<Member> members) {
+        for (Member member : members) {
+            update(member.getMemberId(), member.getMoney());
+        }
+    }
+
+    default void deleteAll(List<String> memberIds) {
+        for (String memberId : memberIds) {
+            delete(memberId);
+        }
+    }
 }
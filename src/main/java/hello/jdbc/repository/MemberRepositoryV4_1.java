@@ -5,14 +5,26 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.sql.DataSource;
 
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
 import hello.jdbc.repository.ex.MyDbException;
 import lombok.extern.slf4j.Slf4j;
 
@@ -25,9 +37,11 @@ import lombok.extern.slf4j.Slf4j;
 public class MemberRepositoryV4_1 implements MemberRepository{
 
     private final DataSource dataSource;
+    private final TransactionTemplate txTemplate; // 트랜잭션 밖에서 transfer()를 호출한 경우에 사용한다
 
     public MemberRepositoryV4_1(DataSource dataSource) {
         this.dataSource = dataSource;
+        this.txTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
     }
 
     @Override // 인터페이스 사용 시 overide를 넣는 것이 좋다
@@ -83,6 +97,130 @@ public class MemberRepositoryV4_1 implements MemberRepository{
         }
     }
 
+    @Override
+    public Map<String, Member> findByIdsForUpdate(Collection<String> memberIds) {
+        List<String> ids = BatchSupport.distinctSorted(memberIds); // 락을 거는 순서를 member_id 순서로 고정한다
+        Map<String, Member> result = new LinkedHashMap<>();
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            con = getConnection();
+            for (int from = 0; from < ids.size(); from += BatchSupport.MAX_IN_LIST_SIZE) {
+                List<String> chunk = ids.subList(from, Math.min(from + BatchSupport.MAX_IN_LIST_SIZE, ids.size()));
+                String sql = "select * from member where member_id in " + BatchSupport.inClause(chunk.size())
+                    + " order by member_id for update";
+                pstmt = con.prepareStatement(sql);
+                BatchSupport.setInParameters(pstmt, 1, chunk);
+
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    Member member = new Member();
+                    member.setMemberId(rs.getString("member_id"));
+                    member.setMoney(rs.getInt("money"));
+                    result.put(member.getMemberId(), member);
+                }
+                JdbcUtils.closeResultSet(rs);
+                JdbcUtils.closeStatement(pstmt);
+                rs = null;
+                pstmt = null;
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new MyDbException(e); // 예외를 갈아탈 때는 반드시 기존 예외를 넣어줘야 한다
+        } finally {
+            close(con, pstmt, rs); // close 처리는 중요하다
+        }
+    }
+
+    @Override
+    public Stream<Member> streamAll(int fetchSize) {
+        String sql = "select * from member order by member_id";
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            pstmt.setFetchSize(fetchSize); // 한 번에 가져오는 row 수
+            rs = pstmt.executeQuery();
+        } catch (SQLException e) {
+            close(con, pstmt, rs);
+            throw new MyDbException(e); // 예외를 갈아탈 때는 반드시 기존 예외를 넣어줘야 한다
+        }
+
+        // ResultSet을 열어둔 채로 Stream이 한 건씩 당겨갈 때마다 매핑한다
+        Connection streamCon = con;
+        PreparedStatement streamPstmt = pstmt;
+        ResultSet streamRs = rs;
+        Spliterator<Member> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE,
+            Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Member> action) {
+                try {
+                    if (!streamRs.next()) {
+                        return false;
+                    }
+                    Member member = new Member();
+                    member.setMemberId(streamRs.getString("member_id"));
+                    member.setMoney(streamRs.getInt("money"));
+                    action.accept(member);
+                    return true;
+                } catch (SQLException e) {
+                    throw new MyDbException(e);
+                }
+            }
+        };
+
+        // Stream을 close 하면 ResultSet, Statement, Connection을 정리한다
+        return StreamSupport.stream(spliterator, false)
+            .onClose(() -> close(streamCon, streamPstmt, streamRs));
+    }
+
+    @Override
+    public TransferResult transfer(String fromId, String toId, int money) {
+        TransferSupport.validate(fromId, toId, money);
+
+        // 이미 트랜잭션이 있으면 참여하고, 없으면 새로 시작한다. 한쪽만 변경되면 롤백해야 하기 때문이다
+        return txTemplate.execute(status -> {
+            int resultSize = executeTransfer(fromId, toId, money);
+            if (resultSize == 2) {
+                return TransferResult.SUCCESS;
+            }
+            if (resultSize == 0) {
+                return TransferSupport.failureReason(findByIds(List.of(fromId, toId)), fromId, toId);
+            }
+            throw TransferSupport.partialTransfer(resultSize, fromId, toId);
+        });
+    }
+
+    private int executeTransfer(String fromId, String toId, int money) {
+        String sql = TransferSupport.TRANSFER_SQL;
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            Object[] parameters = TransferSupport.transferParameters(fromId, toId, money);
+            for (int i = 0; i < parameters.length; i++) {
+                pstmt.setObject(i + 1, parameters[i]);
+            }
+            int resultSize = pstmt.executeUpdate();
+            log.info("resultSize={}", resultSize);
+            return resultSize;
+        } catch (SQLException e) {
+            throw new MyDbException(e); // 예외를 갈아탈 때는 반드시 기존 예외를 넣어줘야 한다
+        } finally {
+            close(con, pstmt, null); // 항상 호출을 보장해야 한다
+        }
+    }
+
     @Override
     public void update(String memberId, int money) {
         String sql = "update member set money =? where member_id=?";
@@ -104,6 +242,51 @@ public class MemberRepositoryV4_1 implements MemberRepository{
         }
     }
 
+    @Override
+    public int addMoney(String memberId, int delta) {
+        String sql = "update member set money = money + ? where member_id=?";
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            pstmt.setInt(1, delta);
+            pstmt.setString(2, memberId);
+            int resultSize = pstmt.executeUpdate();
+            log.info("resultSize={}", resultSize);
+            return resultSize;
+        } catch (SQLException e) {
+            throw new MyDbException(e); // 예외를 갈아탈 때는 반드시 기존 예외를 넣어줘야 한다
+        } finally {
+            close(con, pstmt, null); // 항상 호출을 보장해야 한다
+        }
+    }
+
+    @Override
+    public int withdraw(String memberId, int amount) {
+        String sql = "update member set money = money - ? where member_id=? and money >= ?";
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            pstmt.setInt(1, amount);
+            pstmt.setString(2, memberId);
+            pstmt.setInt(3, amount);
+            int resultSize = pstmt.executeUpdate();
+            log.info("resultSize={}", resultSize);
+            return resultSize;
+        } catch (SQLException e) {
+            throw new MyDbException(e); // 예외를 갈아탈 때는 반드시 기존 예외를 넣어줘야 한다
+        } finally {
+            close(con, pstmt, null); // 항상 호출을 보장해야 한다
+        }
+    }
+
     @Override
     public void delete(String memberId) {
         String sql = "delete from member where member_id =?";
@@ -126,6 +309,28 @@ public class MemberRepositoryV4_1 implements MemberRepository{
 
     }
 
+    @Override
+    public boolean deleteIfUnchanged(Member expected) {
+        String sql = "delete from member where member_id = ? and money = ?";
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            pstmt.setString(1, expected.getMemberId());
+            pstmt.setInt(2, expected.getMoney());
+            int resultSize = pstmt.executeUpdate();
+            log.info("resultSize={}", resultSize);
+            return resultSize == 1;
+        } catch (SQLException e) {
+            throw new MyDbException(e); // 예외를 갈아탈 때는 반드시 기존 예외를 넣어줘야 한다
+        } finally {
+            close(con, pstmt, null); // 항상 호출을 보장해야 한다
+        }
+    }
+
     private void close(Connection con, Statement stmt, ResultSet rs) {
 
         // 아래와 같은 구조로 코드를 작성하면, 각각의 객체 close 과정에서 error가 발생해도 con.close를 수행할 수 있다
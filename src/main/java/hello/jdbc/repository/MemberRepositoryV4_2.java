@@ -1,22 +1,42 @@
 package hello.jdbc.repository;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.sql.DataSource;
 
-import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.jdbc.support.JdbcUtils;
-import org.springframework.jdbc.support.SQLErrorCodeSQLExceptionTranslator;
-import org.springframework.jdbc.support.SQLExceptionTranslator;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+import hello.jdbc.repository.ex.ErrorCodeExceptionTranslator;
+import hello.jdbc.repository.ex.ExceptionTranslatorRegistry;
 import hello.jdbc.repository.ex.MyDbException;
+import hello.jdbc.repository.ex.MyDuplicateKeyException;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -26,17 +46,28 @@ import lombok.extern.slf4j.Slf4j;
 public class MemberRepositoryV4_2 implements MemberRepository {
 
     private final DataSource dataSource;
-    private final SQLExceptionTranslator exTranslator;
+    private final ErrorCodeExceptionTranslator exTranslator;
+    private final int batchSize; // saveAll, updateAll, deleteAll 에서 executeBatch() 한 번에 보내는 건수
+    private final TransactionTemplate txTemplate; // 트랜잭션 밖에서 transfer()를 호출한 경우에 사용한다
 
     public MemberRepositoryV4_2(DataSource dataSource) {
+        this(dataSource, BatchSupport.DEFAULT_BATCH_SIZE);
+    }
+
+    public MemberRepositoryV4_2(DataSource dataSource, int batchSize) {
+        BatchSupport.checkBatchSize(batchSize);
         this.dataSource = dataSource;
-        this.exTranslator = new SQLErrorCodeSQLExceptionTranslator(dataSource); // 에러코드를 찾아서 예외를 전환해주는 구현체 사용
+        // 에러코드를 찾아서 예외를 전환해주는 구현체 사용. DataSource 마다 하나를 공유하고, DB 종류는 지금 미리 확인한다
+        // 등록된 커스텀 전환(MyDbException 등)이 있으면 그 예외로 던진다
+        this.exTranslator = ExceptionTranslatorRegistry.getTranslator(dataSource);
+        this.batchSize = batchSize;
+        this.txTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
     }
 
     @Override // 인터페이스 사용 시 overide를 넣는 것이 좋다
     public Member save(Member member) { // throws SQLException 는 생략해도 된다(unchecked 예외 사용)
 
-        String sql = "insert into member(member_id, money) values (?,?) 잘못된 쿼리를 넣은 상황이다!"; // 쿼리
+        String sql = "insert into member(member_id, money) values (?,?)"; // 쿼리
         Connection con = null;
         PreparedStatement pstmt = null;
 
@@ -48,7 +79,7 @@ public class MemberRepositoryV4_2 implements MemberRepository {
             pstmt.executeUpdate(); // 실행
             return member;
         } catch (SQLException e) {
-            throw exTranslator.translate("save", sql, e);
+            throw exTranslator.translateToRuntime("save", sql, e);
         } finally {
             close(con, pstmt, null); // 항상 호출을 보장해야 한다
         }
@@ -79,12 +110,176 @@ public class MemberRepositoryV4_2 implements MemberRepository {
                     "member not found memberId=" + memberId); // memberId를 예외 메시지에 넣지 않으면 어떤 memberId가 문제인지 알 수 없다
             }
         } catch (SQLException e) {
-            throw exTranslator.translate("findById", sql, e);
+            throw exTranslator.translateToRuntime("findById", sql, e);
+        } finally {
+            close(con, pstmt, rs); // close 처리는 중요하다
+        }
+    }
+
+    @Override
+    public Map<String, Member> findByIds(Collection<String> memberIds) {
+        List<String> ids = BatchSupport.distinctSorted(memberIds);
+        Map<String, Member> result = new HashMap<>();
+        String sql = null;
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            con = getConnection();
+            // 키가 많으면 MAX_IN_LIST_SIZE 개씩 나누어 조회한다
+            for (int from = 0; from < ids.size(); from += BatchSupport.MAX_IN_LIST_SIZE) {
+                List<String> chunk = ids.subList(from, Math.min(from + BatchSupport.MAX_IN_LIST_SIZE, ids.size()));
+                sql = "select * from member where member_id in " + BatchSupport.inClause(chunk.size());
+                pstmt = con.prepareStatement(sql);
+                BatchSupport.setInParameters(pstmt, 1, chunk);
+
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    Member member = new Member();
+                    member.setMemberId(rs.getString("member_id"));
+                    member.setMoney(rs.getInt("money"));
+                    result.put(member.getMemberId(), member);
+                }
+                JdbcUtils.closeResultSet(rs);
+                JdbcUtils.closeStatement(pstmt);
+                rs = null;
+                pstmt = null;
+            }
+            return result;
+        } catch (SQLException e) {
+            throw exTranslator.translateToRuntime("findByIds", sql, e);
         } finally {
             close(con, pstmt, rs); // close 처리는 중요하다
         }
     }
 
+    @Override
+    public Map<String, Member> findByIdsForUpdate(Collection<String> memberIds) {
+        List<String> ids = BatchSupport.distinctSorted(memberIds); // 락을 거는 순서를 member_id 순서로 고정한다
+        Map<String, Member> result = new LinkedHashMap<>();
+        String sql = null;
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            con = getConnection();
+            for (int from = 0; from < ids.size(); from += BatchSupport.MAX_IN_LIST_SIZE) {
+                List<String> chunk = ids.subList(from, Math.min(from + BatchSupport.MAX_IN_LIST_SIZE, ids.size()));
+                sql = "select * from member where member_id in " + BatchSupport.inClause(chunk.size())
+                    + " order by member_id for update";
+                pstmt = con.prepareStatement(sql);
+                BatchSupport.setInParameters(pstmt, 1, chunk);
+
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    Member member = new Member();
+                    member.setMemberId(rs.getString("member_id"));
+                    member.setMoney(rs.getInt("money"));
+                    result.put(member.getMemberId(), member);
+                }
+                JdbcUtils.closeResultSet(rs);
+                JdbcUtils.closeStatement(pstmt);
+                rs = null;
+                pstmt = null;
+            }
+            return result;
+        } catch (SQLException e) {
+            throw exTranslator.translateToRuntime("findByIdsForUpdate", sql, e);
+        } finally {
+            close(con, pstmt, rs); // close 처리는 중요하다
+        }
+    }
+
+    @Override
+    public Stream<Member> streamAll(int fetchSize) {
+        String sql = "select * from member order by member_id";
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            pstmt.setFetchSize(fetchSize); // 한 번에 가져오는 row 수
+            rs = pstmt.executeQuery();
+        } catch (SQLException e) {
+            close(con, pstmt, rs);
+            throw exTranslator.translateToRuntime("streamAll", sql, e);
+        }
+
+        // ResultSet을 열어둔 채로 Stream이 한 건씩 당겨갈 때마다 매핑한다
+        Connection streamCon = con;
+        PreparedStatement streamPstmt = pstmt;
+        ResultSet streamRs = rs;
+        Spliterator<Member> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE,
+            Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Member> action) {
+                try {
+                    if (!streamRs.next()) {
+                        return false;
+                    }
+                    Member member = new Member();
+                    member.setMemberId(streamRs.getString("member_id"));
+                    member.setMoney(streamRs.getInt("money"));
+                    action.accept(member);
+                    return true;
+                } catch (SQLException e) {
+                    throw exTranslator.translateToRuntime("streamAll", sql, e);
+                }
+            }
+        };
+
+        // Stream을 close 하면 ResultSet, Statement, Connection을 정리한다
+        return StreamSupport.stream(spliterator, false)
+            .onClose(() -> close(streamCon, streamPstmt, streamRs));
+    }
+
+    @Override
+    public TransferResult transfer(String fromId, String toId, int money) {
+        TransferSupport.validate(fromId, toId, money);
+
+        // 이미 트랜잭션이 있으면 참여하고, 없으면 새로 시작한다. 한쪽만 변경되면 롤백해야 하기 때문이다
+        return txTemplate.execute(status -> {
+            int resultSize = executeTransfer(fromId, toId, money);
+            if (resultSize == 2) {
+                return TransferResult.SUCCESS;
+            }
+            if (resultSize == 0) {
+                return TransferSupport.failureReason(findByIds(List.of(fromId, toId)), fromId, toId);
+            }
+            throw TransferSupport.partialTransfer(resultSize, fromId, toId);
+        });
+    }
+
+    private int executeTransfer(String fromId, String toId, int money) {
+        String sql = TransferSupport.TRANSFER_SQL;
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            Object[] parameters = TransferSupport.transferParameters(fromId, toId, money);
+            for (int i = 0; i < parameters.length; i++) {
+                pstmt.setObject(i + 1, parameters[i]);
+            }
+            int resultSize = pstmt.executeUpdate();
+            log.info("resultSize={}", resultSize);
+            return resultSize;
+        } catch (SQLException e) {
+            throw exTranslator.translateToRuntime("transfer", sql, e);
+        } finally {
+            close(con, pstmt, null); // 항상 호출을 보장해야 한다
+        }
+    }
+
     @Override
     public void update(String memberId, int money) {
         String sql = "update member set money =? where member_id=?";
@@ -100,7 +295,52 @@ public class MemberRepositoryV4_2 implements MemberRepository {
             int resultSize = pstmt.executeUpdate();
             log.info("resultSize={}", resultSize);
         } catch (SQLException e) {
-            throw exTranslator.translate("update ", sql, e);
+            throw exTranslator.translateToRuntime("update ", sql, e);
+        } finally {
+            close(con, pstmt, null); // 항상 호출을 보장해야 한다
+        }
+    }
+
+    @Override
+    public int addMoney(String memberId, int delta) {
+        String sql = "update member set money = money + ? where member_id=?";
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            pstmt.setInt(1, delta);
+            pstmt.setString(2, memberId);
+            int resultSize = pstmt.executeUpdate();
+            log.info("resultSize={}", resultSize);
+            return resultSize;
+        } catch (SQLException e) {
+            throw exTranslator.translateToRuntime("addMoney", sql, e);
+        } finally {
+            close(con, pstmt, null); // 항상 호출을 보장해야 한다
+        }
+    }
+
+    @Override
+    public int withdraw(String memberId, int amount) {
+        String sql = "update member set money = money - ? where member_id=? and money >= ?";
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            pstmt.setInt(1, amount);
+            pstmt.setString(2, memberId);
+            pstmt.setInt(3, amount);
+            int resultSize = pstmt.executeUpdate();
+            log.info("resultSize={}", resultSize);
+            return resultSize;
+        } catch (SQLException e) {
+            throw exTranslator.translateToRuntime("withdraw", sql, e);
         } finally {
             close(con, pstmt, null); // 항상 호출을 보장해야 한다
         }
@@ -121,11 +361,209 @@ public class MemberRepositoryV4_2 implements MemberRepository {
             int resultSize = pstmt.executeUpdate();
             log.info("resultSize={}", resultSize);
         } catch (SQLException e) {
-            throw exTranslator.translate("delete", sql, e);
+            throw exTranslator.translateToRuntime("delete", sql, e);
+        } finally {
+            close(con, pstmt, null); // 항상 호출을 보장해야 한다
+        }
+
+    }
+
+    @Override
+    public boolean deleteIfUnchanged(Member expected) {
+        String sql = "delete from member where member_id = ? and money = ?";
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            pstmt.setString(1, expected.getMemberId());
+            pstmt.setInt(2, expected.getMoney());
+            int resultSize = pstmt.executeUpdate();
+            log.info("resultSize={}", resultSize);
+            return resultSize == 1;
+        } catch (SQLException e) {
+            throw exTranslator.translateToRuntime("deleteIfUnchanged", sql, e);
+        } finally {
+            close(con, pstmt, null); // 항상 호출을 보장해야 한다
+        }
+    }
+
+    @Override
+    public boolean insertIfAbsent(Member member) {
+        String sql = UpsertSupport.INSERT_IF_ABSENT_SQL;
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            UpsertSupport.setInsertIfAbsentParameters(pstmt, member);
+            int resultSize = pstmt.executeUpdate();
+            log.info("resultSize={}", resultSize);
+            return resultSize == 1;
+        } catch (SQLException e) {
+            RuntimeException ex = exTranslator.translateToRuntime("insertIfAbsent", sql, e);
+            if (ex instanceof DuplicateKeyException || ex instanceof MyDuplicateKeyException) {
+                return false; // 동시에 다른 트랜잭션이 먼저 insert 했다
+            }
+            throw ex;
+        } finally {
+            close(con, pstmt, null); // 항상 호출을 보장해야 한다
+        }
+    }
+
+    @Override
+    public boolean upsert(Member member) {
+        String sql = UpsertSupport.UPSERT_SQL; // 한 번의 쿼리로 저장하고 새로 만들었는지 확인한다
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            con = getConnection();
+            pstmt = con.prepareStatement(sql);
+            pstmt.setString(1, member.getMemberId());
+            pstmt.setInt(2, member.getMoney());
+            rs = pstmt.executeQuery();
+            rs.next();
+            return rs.getInt(1) == 0;
+        } catch (SQLException e) {
+            throw exTranslator.translateToRuntime("upsert", sql, e);
         } finally {
+            close(con, pstmt, rs); // 항상 호출을 보장해야 한다
+        }
+    }
+
+    @Override
+    public int insertIfAbsentAll(List<Member> members) {
+        List<Member> existing = executeBatch("insertIfAbsentAll", UpsertSupport.INSERT_IF_ABSENT_SQL, members,
+            BatchSupport.MEMBER_ID_ORDER, Member::getMemberId, UpsertSupport::setInsertIfAbsentParameters);
+        return members.size() - existing.size();
+    }
+
+    @Override
+    public int upsertAll(List<Member> members) {
+        // 한 트랜잭션에서 1. 이미 있는 회원에 락을 걸고 2. merge 한 번의 batch로 저장한다
+        // 락을 건 회원은 merge 전에 삭제될 수 없으므로 새로 만든 건수가 정확하다
+        return txTemplate.execute(status -> {
+            Map<String, Member> existing = findByIdsForUpdate(
+                members.stream().map(Member::getMemberId).collect(Collectors.toList()));
+            executeBatch("upsertAll", UpsertSupport.MERGE_SQL, members, BatchSupport.MEMBER_ID_ORDER,
+                Member::getMemberId, (pstmt, member) -> {
+                    pstmt.setString(1, member.getMemberId());
+                    pstmt.setInt(2, member.getMoney());
+                });
+            return UpsertSupport.createdCount(members, existing);
+        });
+    }
+
+    @Override
+    public void saveAll(List<Member> members) {
+        String sql = "insert into member(member_id, money) values (?,?)";
+        executeBatch("saveAll", sql, members, BatchSupport.MEMBER_ID_ORDER, Member::getMemberId, (pstmt, member) -> {
+            pstmt.setString(1, member.getMemberId());
+            pstmt.setInt(2, member.getMoney());
+        });
+    }
+
+    @Override
+    public void updateAll(List<Member> members) {
+        String sql = "update member set money =? where member_id=?";
+        executeBatch("updateAll", sql, members, BatchSupport.MEMBER_ID_ORDER, Member::getMemberId, (pstmt, member) -> {
+            pstmt.setInt(1, member.getMoney());
+            pstmt.setString(2, member.getMemberId());
+        });
+    }
+
+    @Override
+    public void deleteAll(List<String> memberIds) {
+        String sql = "delete from member where member_id =?";
+        executeBatch("deleteAll", sql, memberIds, Comparator.naturalOrder(), Function.identity(),
+            (pstmt, memberId) -> pstmt.setString(1, memberId));
+    }
+
+    /**
+     * batchSize 건씩 addBatch() 한 뒤 executeBatch()로 한 번에 보낸다
+     * 트랜잭션 안에서 호출하면 전체가 하나의 트랜잭션으로 처리된다
+     * 트랜잭션 밖에서는 auto commit을 끄고 batch 단위로 커밋한다. 실패한 batch는 롤백되고 앞에서 커밋한 batch는 남는다
+     * @return 변경된 row가 0건인 항목
+     */
+    private <T> List<T> executeBatch(String task, String sql, List<T> items, Comparator<? super T> order,
+        Function<T, String> idOf, ParameterizedPreparedStatementSetter<T> setter) {
+        List<T> unchanged = new ArrayList<>();
+        if (items.isEmpty()) {
+            return unchanged;
+        }
+        List<T> sorted = BatchSupport.sortWithinChunks(items, order, batchSize);
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        int chunkStart = 0;
+        boolean commitPerBatch = false; // 트랜잭션 밖이라 auto commit을 직접 끈 경우
+
+        try {
+            con = getConnection();
+            if (!DataSourceUtils.isConnectionTransactional(con, dataSource) && con.getAutoCommit()) {
+                con.setAutoCommit(false); // auto commit이면 batch 안의 문장마다 따로 커밋된다
+                commitPerBatch = true;
+            }
+            pstmt = con.prepareStatement(sql);
+            for (chunkStart = 0; chunkStart < sorted.size(); chunkStart += batchSize) {
+                int chunkEnd = Math.min(chunkStart + batchSize, sorted.size());
+                for (int i = chunkStart; i < chunkEnd; i++) {
+                    setter.setValues(pstmt, sorted.get(i));
+                    pstmt.addBatch();
+                }
+                int[] resultSizes = pstmt.executeBatch();
+                if (commitPerBatch) {
+                    con.commit();
+                }
+                log.info("{} batch resultSize={}", task, resultSizes.length);
+                for (int i = 0; i < resultSizes.length; i++) {
+                    if (resultSizes[i] == 0) {
+                        unchanged.add(sorted.get(chunkStart + i));
+                    }
+                }
+            }
+            return unchanged;
+        } catch (BatchUpdateException e) {
+            rollbackBatch(con, commitPerBatch);
+            // 실패한 건의 키를 작업명에 넣어서 어떤 row가 문제인지 알 수 있게 한다
+            int failedIndex = chunkStart + BatchSupport.firstFailedIndex(e.getUpdateCounts());
+            String failedId = failedIndex < sorted.size() ? idOf.apply(sorted.get(failedIndex)) : "unknown";
+            throw exTranslator.translateToRuntime(task + " memberId=" + failedId, sql, e);
+        } catch (SQLException e) {
+            rollbackBatch(con, commitPerBatch);
+            throw exTranslator.translateToRuntime(task, sql, e);
+        } finally {
+            if (commitPerBatch) {
+                restoreAutoCommit(con);
+            }
             close(con, pstmt, null); // 항상 호출을 보장해야 한다
         }
+    }
+
+    private void rollbackBatch(Connection con, boolean commitPerBatch) {
+        if (!commitPerBatch) {
+            return; // 트랜잭션 안이면 롤백은 트랜잭션 매니저가 한다
+        }
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            log.warn("batch rollback failed", e);
+        }
+    }
 
+    private void restoreAutoCommit(Connection con) {
+        try {
+            con.setAutoCommit(true); // 커넥션 풀에 돌려주기 전에 원래대로 되돌린다
+        } catch (SQLException e) {
+            log.warn("restore auto commit failed", e);
+        }
     }
 
     private void close(Connection con, Statement stmt, ResultSet rs) {
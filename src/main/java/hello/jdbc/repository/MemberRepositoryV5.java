@@ -1,11 +1,26 @@
 package hello.jdbc.repository;
 
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 import javax.sql.DataSource;
 
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -15,9 +30,18 @@ import lombok.extern.slf4j.Slf4j;
 public class MemberRepositoryV5 implements MemberRepository {
 
     private final JdbcTemplate template; // 이 안에서 모두 해결할 수 있다
+    private final int batchSize; // saveAll, updateAll, deleteAll 에서 executeBatch() 한 번에 보내는 건수
+    private final TransactionTemplate txTemplate; // 트랜잭션 밖에서 transfer()를 호출한 경우에 사용한다
 
     public MemberRepositoryV5(DataSource dataSource) {
+        this(dataSource, BatchSupport.DEFAULT_BATCH_SIZE);
+    }
+
+    public MemberRepositoryV5(DataSource dataSource, int batchSize) {
+        BatchSupport.checkBatchSize(batchSize);
         this.template = new JdbcTemplate(dataSource); // dataSource를 생성자 주입 받아 JdbcTemplate 객체를 생성한다
+        this.batchSize = batchSize;
+        this.txTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
     }
 
     @Override // 인터페이스 사용 시 overide를 넣는 것이 좋다
@@ -84,6 +108,70 @@ public class MemberRepositoryV5 implements MemberRepository {
         // }
     }
 
+    @Override
+    public Map<String, Member> findByIds(Collection<String> memberIds) {
+        List<String> ids = BatchSupport.distinctSorted(memberIds);
+        Map<String, Member> result = new HashMap<>();
+
+        // 키가 많으면 MAX_IN_LIST_SIZE 개씩 나누어 조회한다
+        for (int from = 0; from < ids.size(); from += BatchSupport.MAX_IN_LIST_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + BatchSupport.MAX_IN_LIST_SIZE, ids.size()));
+            String sql = "select * from member where member_id in " + BatchSupport.inClause(chunk.size());
+            template.query(sql, pstmt -> BatchSupport.setInParameters(pstmt, 1, chunk), resultSet -> {
+                Member member = memberRowMapper().mapRow(resultSet, 0);
+                result.put(member.getMemberId(), member);
+            });
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Member> findByIdsForUpdate(Collection<String> memberIds) {
+        List<String> ids = BatchSupport.distinctSorted(memberIds); // 락을 거는 순서를 member_id 순서로 고정한다
+        Map<String, Member> result = new LinkedHashMap<>();
+
+        for (int from = 0; from < ids.size(); from += BatchSupport.MAX_IN_LIST_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + BatchSupport.MAX_IN_LIST_SIZE, ids.size()));
+            String sql = "select * from member where member_id in " + BatchSupport.inClause(chunk.size())
+                + " order by member_id for update";
+            template.query(sql, pstmt -> BatchSupport.setInParameters(pstmt, 1, chunk), resultSet -> {
+                Member member = memberRowMapper().mapRow(resultSet, 0);
+                result.put(member.getMemberId(), member);
+            });
+        }
+        return result;
+    }
+
+    @Override
+    public Stream<Member> streamAll(int fetchSize) {
+        String sql = "select * from member order by member_id";
+
+        // queryForStream은 ResultSet을 열어둔 채 한 건씩 매핑한다. Stream을 close 해야 커넥션이 반환된다
+        return template.queryForStream(con -> {
+            PreparedStatement pstmt = con.prepareStatement(sql);
+            pstmt.setFetchSize(fetchSize); // 한 번에 가져오는 row 수
+            return pstmt;
+        }, memberRowMapper());
+    }
+
+    @Override
+    public TransferResult transfer(String fromId, String toId, int money) {
+        TransferSupport.validate(fromId, toId, money);
+
+        // 이미 트랜잭션이 있으면 참여하고, 없으면 새로 시작한다. 한쪽만 변경되면 롤백해야 하기 때문이다
+        return txTemplate.execute(status -> {
+            int resultSize = template.update(TransferSupport.TRANSFER_SQL,
+                TransferSupport.transferParameters(fromId, toId, money));
+            if (resultSize == 2) {
+                return TransferResult.SUCCESS;
+            }
+            if (resultSize == 0) {
+                return TransferSupport.failureReason(findByIds(List.of(fromId, toId)), fromId, toId);
+            }
+            throw TransferSupport.partialTransfer(resultSize, fromId, toId);
+        });
+    }
+
     @Override
     public void update(String memberId, int money) {
         String sql = "update member set money =? where member_id=?";
@@ -109,6 +197,18 @@ public class MemberRepositoryV5 implements MemberRepository {
         }*/
     }
 
+    @Override
+    public int addMoney(String memberId, int delta) {
+        String sql = "update member set money = money + ? where member_id=?";
+        return template.update(sql, delta, memberId); // 조회한 값이 아니라 DB의 현재 값을 기준으로 더한다
+    }
+
+    @Override
+    public int withdraw(String memberId, int amount) {
+        String sql = "update member set money = money - ? where member_id=? and money >= ?";
+        return template.update(sql, amount, memberId, amount); // 잔액이 부족하면 0을 반환한다
+    }
+
     @Override
     public void delete(String memberId) {
         String sql = "delete from member where member_id =?";
@@ -135,6 +235,100 @@ public class MemberRepositoryV5 implements MemberRepository {
 
     }
 
+    @Override
+    public boolean insertIfAbsent(Member member) {
+        try {
+            return template.update(UpsertSupport.INSERT_IF_ABSENT_SQL, UpsertSupport.insertIfAbsentParameters(member)) == 1;
+        } catch (DuplicateKeyException e) {
+            return false; // 동시에 다른 트랜잭션이 먼저 insert 했다
+        }
+    }
+
+    @Override
+    public boolean upsert(Member member) {
+        Integer existing = template.queryForObject(UpsertSupport.UPSERT_SQL, Integer.class,
+            member.getMemberId(), member.getMoney());
+        return existing != null && existing == 0;
+    }
+
+    @Override
+    public int insertIfAbsentAll(List<Member> members) {
+        return members.size() - insertMissing(members).size();
+    }
+
+    @Override
+    public int upsertAll(List<Member> members) {
+        // 한 트랜잭션에서 1. 이미 있는 회원에 락을 걸고 2. merge 한 번의 batch로 저장한다
+        // 락을 건 회원은 merge 전에 삭제될 수 없으므로 새로 만든 건수가 정확하다
+        return txTemplate.execute(status -> {
+            Map<String, Member> existing = findByIdsForUpdate(
+                members.stream().map(Member::getMemberId).collect(Collectors.toList()));
+            template.batchUpdate(UpsertSupport.MERGE_SQL,
+                BatchSupport.sortWithinChunks(members, BatchSupport.MEMBER_ID_ORDER, batchSize), batchSize,
+                (pstmt, member) -> {
+                    pstmt.setString(1, member.getMemberId());
+                    pstmt.setInt(2, member.getMoney());
+                });
+            return UpsertSupport.createdCount(members, existing);
+        });
+    }
+
+    /**
+     * 없는 회원만 batch로 insert 하고, 이미 있어서 insert 하지 않은 회원을 돌려준다
+     */
+    private List<Member> insertMissing(List<Member> members) {
+        List<Member> sorted = BatchSupport.sortWithinChunks(members, BatchSupport.MEMBER_ID_ORDER, batchSize);
+        int[][] resultSizes = template.batchUpdate(UpsertSupport.INSERT_IF_ABSENT_SQL, sorted, batchSize,
+            UpsertSupport::setInsertIfAbsentParameters);
+
+        List<Member> existing = new ArrayList<>();
+        int index = 0;
+        for (int[] chunk : resultSizes) {
+            for (int resultSize : chunk) {
+                if (resultSize == 0) { // SUCCESS_NO_INFO(-2)는 insert 된 것으로 본다
+                    existing.add(sorted.get(index));
+                }
+                index++;
+            }
+        }
+        return existing;
+    }
+
+    @Override
+    public void saveAll(List<Member> members) {
+        String sql = "insert into member(member_id, money) values (?,?)";
+
+        // batchUpdate()가 batchSize 건씩 나누어 executeBatch()를 호출한다. 각 묶음 안은 키 순서로 정렬해서 보낸다
+        template.batchUpdate(sql, BatchSupport.sortWithinChunks(members, BatchSupport.MEMBER_ID_ORDER, batchSize),
+            batchSize, (pstmt, member) -> {
+                pstmt.setString(1, member.getMemberId());
+                pstmt.setInt(2, member.getMoney());
+            });
+    }
+
+    @Override
+    public void updateAll(List<Member> members) {
+        String sql = "update member set money =? where member_id=?";
+        template.batchUpdate(sql, BatchSupport.sortWithinChunks(members, BatchSupport.MEMBER_ID_ORDER, batchSize),
+            batchSize, (pstmt, member) -> {
+                pstmt.setInt(1, member.getMoney());
+                pstmt.setString(2, member.getMemberId());
+            });
+    }
+
+    @Override
+    public boolean deleteIfUnchanged(Member expected) {
+        String sql = "delete from member where member_id = ? and money = ?";
+        return template.update(sql, expected.getMemberId(), expected.getMoney()) == 1;
+    }
+
+    @Override
+    public void deleteAll(List<String> memberIds) {
+        String sql = "delete from member where member_id =?";
+        template.batchUpdate(sql, BatchSupport.sortWithinChunks(memberIds, Comparator.naturalOrder(), batchSize),
+            batchSize, (pstmt, memberId) -> pstmt.setString(1, memberId));
+    }
+
     // Connection 반환, Connection 동기화도 JdbcTemplate이 자동으로 처리한다
     /*
     private void close(Connection con, Statement stmt, ResultSet rs) {
@@ -0,0 +1,178 @@
+package hello.jdbc.repository;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * 메트릭 - MemberRepository를 감싸서 메서드별 응답 시간 분포, 호출 수, 예외 수를 Micrometer로 기록한다
+ *
+ * member.repository (Timer)         : 호출 수와 응답 시간. p50, p99, p999와 히스토그램 버킷을 함께 내보낸다
+ * member.repository.errors (Counter) : 예외가 난 호출 수. exception 태그로 예외 종류를 구분한다
+ * 태그: repository(감싼 리포지토리 이름), method
+ *
+ * 리포지토리를 만드는 @Bean 메서드에서 직접 감싼다. MetricsConfig를 켜면 JmxMeterRegistry로 내보낸다(jconsole의 metrics 도메인)
+ */
+public class MetricsMemberRepository implements MemberRepository {
+
+    public static final String TIMER_NAME = "member.repository";
+    public static final String ERROR_COUNTER_NAME = "member.repository.errors";
+
+    private final MemberRepository target;
+    private final MeterRegistry registry;
+    private final String repositoryName;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>(); // 호출마다 registry를 찾지 않도록 보관한다
+
+    public MetricsMemberRepository(MemberRepository target, MeterRegistry registry) {
+        this.target = target;
+        this.registry = registry;
+        this.repositoryName = target.getClass().getSimpleName();
+    }
+
+    @Override
+    public Member save(Member member) {
+        return record("save", () -> target.save(member));
+    }
+
+    @Override
+    public Member findById(String memberId) {
+        return record("findById", () -> target.findById(memberId));
+    }
+
+    @Override
+    public void update(String memberId, int money) {
+        record("update", () -> {
+            target.update(memberId, money);
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(String memberId) {
+        record("delete", () -> {
+            target.delete(memberId);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean deleteIfUnchanged(Member expected) {
+        return record("deleteIfUnchanged", () -> target.deleteIfUnchanged(expected));
+    }
+
+    @Override
+    public Map<String, Member> findByIds(Collection<String> memberIds) {
+        return record("findByIds", () -> target.findByIds(memberIds));
+    }
+
+    @Override
+    public Map<String, Member> findByIdsForUpdate(Collection<String> memberIds) {
+        return record("findByIdsForUpdate", () -> target.findByIdsForUpdate(memberIds));
+    }
+
+    @Override
+    public Stream<Member> streamAll(int fetchSize) {
+        return target.streamAll(fetchSize); // 실제 조회는 Stream을 소비할 때 일어나므로 기록하지 않는다
+    }
+
+    @Override
+    public TransferResult transfer(String fromId, String toId, int money) {
+        return record("transfer", () -> target.transfer(fromId, toId, money));
+    }
+
+    @Override
+    public int addMoney(String memberId, int delta) {
+        return record("addMoney", () -> target.addMoney(memberId, delta));
+    }
+
+    @Override
+    public int withdraw(String memberId, int amount) {
+        return record("withdraw", () -> target.withdraw(memberId, amount));
+    }
+
+    @Override
+    public boolean insertIfAbsent(Member member) {
+        return record("insertIfAbsent", () -> target.insertIfAbsent(member));
+    }
+
+    @Override
+    public boolean upsert(Member member) {
+        return record("upsert", () -> target.upsert(member));
+    }
+
+    @Override
+    public int insertIfAbsentAll(List<Member> members) {
+        return record("insertIfAbsentAll", () -> target.insertIfAbsentAll(members));
+    }
+
+    @Override
+    public int upsertAll(List<Member> members) {
+        return record("upsertAll", () -> target.upsertAll(members));
+    }
+
+    @Override
+    public void saveAll(List<Member> members) {
+        record("saveAll", () -> {
+            target.saveAll(members);
+            return null;
+        });
+    }
+
+    @Override
+    public void updateAll(List<Member> members) {
+        record("updateAll", () -> {
+            target.updateAll(members);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteAll(List<String> memberIds) {
+        record("deleteAll", () -> {
+            target.deleteAll(memberIds);
+            return null;
+        });
+    }
+
+    private <T> T record(String method, Supplier<T> call) {
+        Timer timer = timers.computeIfAbsent(method, this::createTimer);
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            // 예외는 드물게 발생하므로 그때만 registry에서 찾는다
+            Counter.builder(ERROR_COUNTER_NAME)
+                .tag("repository", repositoryName)
+                .tag("method", method)
+                .tag("exception", e.getClass().getSimpleName())
+                .register(registry)
+                .increment();
+            throw e;
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Timer createTimer(String method) {
+        return Timer.builder(TIMER_NAME)
+            .description("MemberRepository 호출 시간")
+            .tag("repository", repositoryName)
+            .tag("method", method)
+            .publishPercentiles(0.5, 0.99, 0.999)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofNanos(100_000))
+            .maximumExpectedValue(Duration.ofSeconds(10))
+            .register(registry);
+    }
+}
@@ -0,0 +1,557 @@
+package hello.jdbc.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 샤딩 - memberId의 일관된 해시로 여러 DataSource(샤드) 중 하나를 골라서 저장한다
+ *
+ * 한 건 작업은 해당 샤드의 리포지토리에 그대로 넘긴다
+ * 여러 건 작업(findByIds, saveAll 등)은 샤드별로 나누어 동시에 실행한다. 트랜잭션 안에서는 호출한 쓰레드에서 차례대로 실행한다
+ * 샤드 사이의 트랜잭션은 없다. 두 샤드에 걸친 transfer, findByIdsForUpdate는 지원하지 않는다
+ *
+ * 샤드 추가(재분배): startMigration()으로 새 샤드 구성을 주면 이동 모드가 된다
+ * - 읽기: 새 위치에서 먼저 찾고, 없으면 이전 위치에서 찾는다(dual-read)
+ * - 쓰기: 아직 이전 위치에 있는 회원은 새 위치로 옮긴 뒤에 쓴다
+ * - migrateAll()이 남은 회원을 모두 옮기면 finishMigration()으로 이동 모드를 끝낸다
+ * - 옮길 때 이전 위치의 row는 읽은 값 그대로일 때만 지운다(deleteIfUnchanged). 그 사이에 바뀌었으면 다시 읽어서 옮긴다
+ * - 같은 회원의 이동과 삭제는 이 프로세스 안에서 락으로 차례대로 실행하고, 이동 중에 지운 회원은 다시 옮기지 않는다
+ */
+@Slf4j
+public class ShardedMemberRepository implements MemberRepository, AutoCloseable {
+
+    private static final int DEFAULT_VIRTUAL_NODES = 128;
+    private static final int MOVE_LOCK_STRIPES = 64; // 2의 제곱수
+    private static final int MAX_MOVE_ATTEMPTS = 5;
+
+    private final Function<DataSource, MemberRepository> repositoryFactory;
+    private final ExecutorService executor;
+    private final int virtualNodes;
+    private volatile Map<String, Shard> shards = Map.of(); // 이름 -> 샤드, 이동 중에는 이전 샤드도 포함한다. 바꿀 때는 복사한다
+
+    private volatile ConsistentHashRing ring;
+    private volatile ConsistentHashRing previousRing; // 이동 모드가 아니면 null
+
+    private final ReentrantLock[] moveLocks = new ReentrantLock[MOVE_LOCK_STRIPES]; // 같은 회원의 이동과 삭제를 차례대로 실행한다
+    private final Set<String> deletedDuringMigration = ConcurrentHashMap.newKeySet(); // 이동 중에 지운 회원. 다시 옮기지 않는다
+
+    public ShardedMemberRepository(Map<String, DataSource> dataSources,
+        Function<DataSource, MemberRepository> repositoryFactory) {
+        this(dataSources, repositoryFactory, AsyncMemberRepository.platformExecutor(dataSources.size() * 2),
+            DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ShardedMemberRepository(Map<String, DataSource> dataSources,
+        Function<DataSource, MemberRepository> repositoryFactory, ExecutorService executor, int virtualNodes) {
+        this.repositoryFactory = repositoryFactory;
+        this.executor = executor;
+        this.virtualNodes = virtualNodes;
+        for (int i = 0; i < moveLocks.length; i++) {
+            moveLocks[i] = new ReentrantLock();
+        }
+        addShards(dataSources);
+        this.ring = new ConsistentHashRing(dataSources.keySet(), virtualNodes);
+    }
+
+    @Override
+    public Member save(Member member) {
+        String memberId = member.getMemberId();
+        prepareInsert(memberId); // 이전 위치에 같은 회원이 있으면 새 위치에서 키 중복이 나도록 옮겨둔다
+        Shard shard = shardFor(memberId);
+        return shard.call(() -> shard.repository.save(member));
+    }
+
+    @Override
+    public Member findById(String memberId) {
+        Shard shard = shardFor(memberId);
+        Shard previous = previousShardFor(memberId);
+        if (previous == null || previous == shard) {
+            return shard.call(() -> shard.repository.findById(memberId));
+        }
+        // 이동 중: 새 위치에 없으면 이전 위치에서 찾는다
+        Member member = shard.call(() -> shard.repository.findByIds(List.of(memberId))).get(memberId);
+        if (member != null) {
+            return member;
+        }
+        return previous.call(() -> previous.repository.findById(memberId));
+    }
+
+    @Override
+    public Map<String, Member> findByIds(Collection<String> memberIds) {
+        Map<String, Member> result = new HashMap<>();
+        fanOut(new LinkedHashSet<>(memberIds), this::shardFor, (shard, ids) -> shard.repository.findByIds(ids))
+            .forEach(result::putAll);
+
+        ConsistentHashRing previous = previousRing;
+        if (previous != null) {
+            List<String> missing = new ArrayList<>();
+            for (String memberId : new LinkedHashSet<>(memberIds)) {
+                if (!result.containsKey(memberId)) {
+                    missing.add(memberId);
+                }
+            }
+            if (!missing.isEmpty()) {
+                fanOut(missing, memberId -> shards.get(previous.shardFor(memberId)),
+                    (shard, ids) -> shard.repository.findByIds(ids)).forEach(result::putAll);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 모든 회원이 같은 샤드에 있을 때만 지원한다. 샤드가 다르면 한 트랜잭션으로 락을 걸 수 없다
+     */
+    @Override
+    public Map<String, Member> findByIdsForUpdate(Collection<String> memberIds) {
+        Shard shard = singleShard(memberIds, "findByIdsForUpdate");
+        return shard.call(() -> shard.repository.findByIdsForUpdate(memberIds));
+    }
+
+    /**
+     * 샤드를 하나씩 차례대로 읽는다. 이동 중에는 같은 회원이 두 번 나올 수 있다
+     */
+    @Override
+    public Stream<Member> streamAll(int fetchSize) {
+        return new ArrayList<>(shards.values()).stream().flatMap(shard -> shard.repository.streamAll(fetchSize));
+    }
+
+    @Override
+    public void update(String memberId, int money) {
+        moveIfNeeded(memberId);
+        Shard shard = shardFor(memberId);
+        shard.call(() -> {
+            shard.repository.update(memberId, money);
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(String memberId) {
+        Shard shard = shardFor(memberId);
+        Shard previous = previousShardFor(memberId);
+        if (previous == null || previous == shard) {
+            shard.call(() -> {
+                shard.repository.delete(memberId);
+                return null;
+            });
+            return;
+        }
+
+        // 이동 중: 옮기는 중인 복사본이 되살아나지 않도록 이동과 같은 락 안에서 양쪽을 지운다
+        ReentrantLock lock = moveLock(memberId);
+        lock.lock();
+        try {
+            deletedDuringMigration.add(memberId);
+            previous.call(() -> {
+                previous.repository.delete(memberId);
+                return null;
+            });
+            shard.call(() -> {
+                shard.repository.delete(memberId);
+                return null;
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteIfUnchanged(Member expected) {
+        moveIfNeeded(expected.getMemberId());
+        Shard shard = shardFor(expected.getMemberId());
+        return shard.call(() -> shard.repository.deleteIfUnchanged(expected));
+    }
+
+    /**
+     * 두 회원이 같은 샤드에 있을 때만 지원한다. 샤드가 다르면 ShardedTransferCoordinator 등으로 나누어 처리해야 한다
+     */
+    @Override
+    public TransferResult transfer(String fromId, String toId, int money) {
+        moveIfNeeded(fromId);
+        moveIfNeeded(toId);
+        Shard shard = singleShard(List.of(fromId, toId), "cross-shard transfer");
+        return shard.call(() -> shard.repository.transfer(fromId, toId, money));
+    }
+
+    @Override
+    public int addMoney(String memberId, int delta) {
+        moveIfNeeded(memberId);
+        Shard shard = shardFor(memberId);
+        return shard.call(() -> shard.repository.addMoney(memberId, delta));
+    }
+
+    @Override
+    public int withdraw(String memberId, int amount) {
+        moveIfNeeded(memberId);
+        Shard shard = shardFor(memberId);
+        return shard.call(() -> shard.repository.withdraw(memberId, amount));
+    }
+
+    @Override
+    public boolean insertIfAbsent(Member member) {
+        prepareInsert(member.getMemberId());
+        Shard shard = shardFor(member.getMemberId());
+        return shard.call(() -> shard.repository.insertIfAbsent(member));
+    }
+
+    @Override
+    public boolean upsert(Member member) {
+        prepareInsert(member.getMemberId());
+        Shard shard = shardFor(member.getMemberId());
+        return shard.call(() -> shard.repository.upsert(member));
+    }
+
+    @Override
+    public int insertIfAbsentAll(List<Member> members) {
+        members.forEach(member -> prepareInsert(member.getMemberId()));
+        return fanOut(members, member -> shardFor(member.getMemberId()),
+            (shard, group) -> shard.repository.insertIfAbsentAll(group))
+            .stream().mapToInt(Integer::intValue).sum();
+    }
+
+    @Override
+    public int upsertAll(List<Member> members) {
+        members.forEach(member -> prepareInsert(member.getMemberId()));
+        return fanOut(members, member -> shardFor(member.getMemberId()),
+            (shard, group) -> shard.repository.upsertAll(group))
+            .stream().mapToInt(Integer::intValue).sum();
+    }
+
+    @Override
+    public void saveAll(List<Member> members) {
+        members.forEach(member -> prepareInsert(member.getMemberId()));
+        fanOut(members, member -> shardFor(member.getMemberId()), (shard, group) -> {
+            shard.repository.saveAll(group);
+            return null;
+        });
+    }
+
+    @Override
+    public void updateAll(List<Member> members) {
+        members.forEach(member -> moveIfNeeded(member.getMemberId()));
+        fanOut(members, member -> shardFor(member.getMemberId()), (shard, group) -> {
+            shard.repository.updateAll(group);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteAll(List<String> memberIds) {
+        ConsistentHashRing previous = previousRing;
+        if (previous != null) {
+            fanOut(memberIds, memberId -> shards.get(previous.shardFor(memberId)), (shard, group) -> {
+                shard.repository.deleteAll(group); // 이동 중: 이전 위치에서도 지운다
+                return null;
+            });
+        }
+        fanOut(memberIds, this::shardFor, (shard, group) -> {
+            shard.repository.deleteAll(group);
+            return null;
+        });
+    }
+
+    /**
+     * 이동 모드를 시작한다. dataSources는 이동이 끝난 뒤의 전체 샤드 구성이다(기존 샤드 포함)
+     */
+    public synchronized void startMigration(Map<String, DataSource> dataSources) {
+        if (previousRing != null) {
+            throw new IllegalStateException("migration is already in progress");
+        }
+        Map<String, DataSource> added = new LinkedHashMap<>(dataSources);
+        added.keySet().removeAll(shards.keySet());
+        addShards(added);
+        previousRing = ring;
+        ring = new ConsistentHashRing(dataSources.keySet(), virtualNodes);
+        log.info("start migration shards={}", dataSources.keySet());
+    }
+
+    /**
+     * 이전 위치에 남아있는 회원을 모두 새 위치로 옮긴다
+     * @return 옮긴 회원 수
+     */
+    public synchronized int migrateAll(int fetchSize) {
+        ConsistentHashRing previous = previousRing;
+        if (previous == null) {
+            return 0;
+        }
+        List<String> moving = new ArrayList<>();
+        for (Shard shard : shards.values()) {
+            try (Stream<Member> members = shard.repository.streamAll(fetchSize)) {
+                members.map(Member::getMemberId)
+                    .filter(memberId -> shard.name.equals(previous.shardFor(memberId))
+                        && !shard.name.equals(ring.shardFor(memberId)))
+                    .forEach(moving::add);
+            }
+        }
+        int moved = 0;
+        for (String memberId : moving) {
+            if (moveIfNeeded(memberId)) {
+                moved++;
+            }
+        }
+        log.info("migrated members={}", moved);
+        return moved;
+    }
+
+    /**
+     * 이동 모드를 끝낸다. 이후에는 새 위치만 사용한다. 새 구성에 없는 샤드는 더 이상 사용하지 않는다
+     */
+    public synchronized void finishMigration() {
+        if (previousRing == null) {
+            return;
+        }
+        previousRing = null;
+        deletedDuringMigration.clear();
+        log.info("finish migration");
+    }
+
+    public boolean isMigrating() {
+        return previousRing != null;
+    }
+
+    /**
+     * 샤드별 호출 수, 예외 수, 평균 시간
+     */
+    public Map<String, ShardStats> getShardStats() {
+        Map<String, ShardStats> stats = new LinkedHashMap<>();
+        shards.forEach((name, shard) -> stats.put(name,
+            new ShardStats(shard.calls.sum(), shard.errors.sum(), shard.totalNanos.sum())));
+        return stats;
+    }
+
+    /**
+     * 샤드 이름. 같은 샤드에 있는 회원끼리만 한 트랜잭션으로 처리할 수 있다
+     */
+    public String shardNameFor(String memberId) {
+        return ring.shardFor(memberId);
+    }
+
+    /**
+     * 현재 샤드 이름. 이동 중이면 추가한 샤드도 포함한다
+     */
+    public Set<String> getShardNames() {
+        return Set.copyOf(shards.keySet());
+    }
+
+    /**
+     * 샤드의 리포지토리. 샤드 안에서 트랜잭션을 직접 처리할 때 사용한다
+     */
+    public MemberRepository repositoryOf(String shardName) {
+        Shard shard = shards.get(shardName);
+        if (shard == null) {
+            throw new NoSuchElementException("shard not found: " + shardName);
+        }
+        return shard.repository;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * 이동 중이고 회원이 아직 이전 위치에 있으면 새 위치로 옮긴다
+     * 새 위치에는 없을 때만 넣으므로, 이미 새 위치에 쓴 값을 덮어쓰지 않는다
+     * 이전 위치의 row는 읽은 값 그대로일 때만 지운다. 그 사이에 다른 쪽이 바꾸거나 지웠으면 새 위치에 넣은 복사본을 되돌리고 다시 읽는다
+     * repositoryOf()로 샤드 안에서 직접 처리하기 전에 호출한다
+     * @return 옮겼으면 true
+     */
+    public boolean moveIfNeeded(String memberId) {
+        Shard shard = shardFor(memberId);
+        Shard previous = previousShardFor(memberId);
+        if (previous == null || previous == shard) {
+            return false;
+        }
+
+        ReentrantLock lock = moveLock(memberId);
+        lock.lock();
+        try {
+            for (int attempt = 1; attempt <= MAX_MOVE_ATTEMPTS; attempt++) {
+                if (deletedDuringMigration.contains(memberId)) {
+                    return false; // 이동 중에 지운 회원은 되살리지 않는다
+                }
+                Member member = previous.call(() -> previous.repository.findByIds(List.of(memberId))).get(memberId);
+                if (member == null) {
+                    return false;
+                }
+                boolean inserted = shard.call(() -> shard.repository.insertIfAbsent(member));
+                if (previous.call(() -> previous.repository.deleteIfUnchanged(member))) {
+                    log.debug("moved memberId={} {} -> {}", memberId, previous.name, shard.name);
+                    return true;
+                }
+                if (inserted) {
+                    shard.call(() -> shard.repository.deleteIfUnchanged(member)); // 오래된 값으로 만든 복사본을 되돌린다
+                }
+                log.info("member changed during move, retry memberId={} attempt={}", memberId, attempt);
+            }
+            throw new ConcurrencyFailureException("member kept changing during move memberId=" + memberId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 새로 저장하기 전에 호출한다. 이전 위치의 회원을 옮기고, 이동 중에 지웠다는 기록을 지운다
+     */
+    private void prepareInsert(String memberId) {
+        moveIfNeeded(memberId);
+        deletedDuringMigration.remove(memberId);
+    }
+
+    private ReentrantLock moveLock(String memberId) {
+        int hash = memberId.hashCode();
+        return moveLocks[(hash ^ (hash >>> 16)) & (MOVE_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * 샤드별로 나누어 실행한다. 샤드가 하나거나 트랜잭션 안이면 호출한 쓰레드에서 실행한다
+     * 트랜잭션은 쓰레드에 묶여 있으므로 다른 쓰레드에서 실행하면 트랜잭션에 참여하지 못한다
+     */
+    private <T, R> List<R> fanOut(Collection<T> items, Function<T, Shard> shardOf, BiFunction<Shard, List<T>, R> work) {
+        Map<Shard, List<T>> groups = new LinkedHashMap<>();
+        for (T item : items) {
+            groups.computeIfAbsent(shardOf.apply(item), key -> new ArrayList<>()).add(item);
+        }
+
+        List<R> results = new ArrayList<>();
+        if (groups.size() <= 1 || TransactionSynchronizationManager.isActualTransactionActive()) {
+            groups.forEach((shard, group) -> results.add(shard.call(() -> work.apply(shard, group))));
+            return results;
+        }
+
+        List<CompletableFuture<R>> futures = new ArrayList<>();
+        groups.forEach((shard, group) ->
+            futures.add(CompletableFuture.supplyAsync(() -> shard.call(() -> work.apply(shard, group)), executor)));
+        for (CompletableFuture<R> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause(); // 리포지토리가 던진 예외를 그대로 전달한다
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+
+    private Shard shardFor(String memberId) {
+        return shards.get(ring.shardFor(memberId));
+    }
+
+    private Shard previousShardFor(String memberId) {
+        ConsistentHashRing previous = previousRing;
+        if (previous == null) {
+            return null;
+        }
+        return shards.get(previous.shardFor(memberId));
+    }
+
+    private Shard singleShard(Collection<String> memberIds, String operation) {
+        Shard result = null;
+        for (String memberId : memberIds) {
+            Shard shard = shardFor(memberId);
+            if (result != null && result != shard) {
+                throw new UnsupportedOperationException(operation + " across shards is not supported: " + memberIds);
+            }
+            result = shard;
+        }
+        if (result == null) {
+            throw new IllegalArgumentException("memberIds is empty");
+        }
+        return result;
+    }
+
+    private synchronized void addShards(Map<String, DataSource> dataSources) {
+        Map<String, Shard> copy = new LinkedHashMap<>(shards);
+        dataSources.forEach((name, dataSource) -> copy.put(name, new Shard(name, repositoryFactory.apply(dataSource))));
+        shards = copy;
+    }
+
+    private static class Shard {
+
+        private final String name;
+        private final MemberRepository repository;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        Shard(String name, MemberRepository repository) {
+            this.name = name;
+            this.repository = repository;
+        }
+
+        <T> T call(Supplier<T> work) {
+            long start = System.nanoTime();
+            calls.increment();
+            try {
+                return work.get();
+            } catch (RuntimeException e) {
+                errors.increment();
+                throw e;
+            } finally {
+                totalNanos.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * 샤드 하나의 통계
+     */
+    public static class ShardStats {
+
+        private final long calls;
+        private final long errors;
+        private final long totalNanos;
+
+        ShardStats(long calls, long errors, long totalNanos) {
+            this.calls = calls;
+            this.errors = errors;
+            this.totalNanos = totalNanos;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getAverageMicros() {
+            return calls == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos / calls);
+        }
+
+        @Override
+        public String toString() {
+            return "ShardStats[calls=" + calls + ", errors=" + errors + ", avg=" + getAverageMicros() + "us]";
+        }
+    }
+}
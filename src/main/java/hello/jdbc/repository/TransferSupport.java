@@ -0,0 +1,58 @@
+package hello.jdbc.repository;
+
+import java.util.Map;
+
+import org.springframework.dao.ConcurrencyFailureException;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+
+/**
+ * 이체 - 한 번의 update 문으로 이체할 때 사용하는 공통 기능
+ */
+abstract class TransferSupport {
+
+    /**
+     * 보내는 회원의 row는 자기 잔액으로, 받는 회원의 row는 서브쿼리로 잔액을 확인한다
+     * 두 회원이 모두 있고 잔액이 충분하면 2건, 아니면 0건이 변경된다
+     * 보내는 회원의 조건은 row 락을 잡은 뒤 다시 확인되므로 동시에 출금해도 잔액이 음수가 되지 않는다
+     */
+    static final String TRANSFER_SQL = "update member"
+        + " set money = case when member_id = ? then money - ? else money + ? end"
+        + " where member_id in (?, ?)"
+        + " and (member_id <> ? or money >= ?)"
+        + " and (select count(*) from member where member_id in (?, ?)) = 2"
+        + " and (select money from member where member_id = ?) >= ?";
+
+    static Object[] transferParameters(String fromId, String toId, int money) {
+        return new Object[] {fromId, money, money, fromId, toId, fromId, money, fromId, toId, fromId, money};
+    }
+
+    static void validate(String fromId, String toId, int money) {
+        if (money <= 0) {
+            throw new IllegalArgumentException("money must be positive: " + money);
+        }
+        if (fromId.equals(toId)) {
+            throw new IllegalArgumentException("cannot transfer to the same member: " + fromId);
+        }
+    }
+
+    /**
+     * 0건이 변경됐을 때 실패 이유를 판단한다
+     */
+    static TransferResult failureReason(Map<String, Member> members, String fromId, String toId) {
+        if (!members.containsKey(fromId) || !members.containsKey(toId)) {
+            return TransferResult.UNKNOWN_MEMBER;
+        }
+        return TransferResult.INSUFFICIENT_FUNDS;
+    }
+
+    /**
+     * 다른 트랜잭션이 동시에 잔액을 바꾸거나 회원을 지워서 한쪽 row만 변경된 경우
+     * 예외를 던져서 트랜잭션을 롤백한다. 다시 시도하면 성공할 수 있다
+     */
+    static ConcurrencyFailureException partialTransfer(int resultSize, String fromId, String toId) {
+        return new ConcurrencyFailureException(
+            "transfer updated " + resultSize + " rows, fromId=" + fromId + ", toId=" + toId);
+    }
+}
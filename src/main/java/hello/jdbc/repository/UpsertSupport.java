@@ -0,0 +1,58 @@
+package hello.jdbc.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import hello.jdbc.domain.Member;
+
+/**
+ * upsert - H2의 merge 문으로 저장할 때 사용하는 공통 기능
+ *
+ * merge into ... key(...) values (...)는 insert, update 모두 변경된 row 수가 1이라서 새로 만든 것인지 알 수 없다
+ * 그래서 insert만 하는 경우는 merge ... using ... when not matched 를 사용하고,
+ * upsert는 merge 전의 row(old table)를 함께 조회한다
+ *
+ * 파라미터는 모두 member 테이블의 컬럼과 비교하거나 컬럼에 저장하므로 타입을 SQL에 적지 않는다(컬럼 타입을 따른다)
+ */
+abstract class UpsertSupport {
+
+    /**
+     * 같은 member_id가 없을 때만 insert 한다. 변경된 row 수가 1이면 새로 만든 것이고 0이면 이미 있던 회원이다
+     */
+    static final String INSERT_IF_ABSENT_SQL = "merge into member t using dual"
+        + " on t.member_id = ?"
+        + " when not matched then insert (member_id, money) values (?, ?)";
+
+    /**
+     * 있으면 update, 없으면 insert 한다. batch로 보낼 수 있지만 새로 만든 것인지는 알 수 없다
+     */
+    static final String MERGE_SQL = "merge into member(member_id, money) key(member_id) values (?, ?)";
+
+    /**
+     * 있으면 update, 없으면 insert 한다. merge 전의 row 수를 돌려주므로 0이면 새로 만든 것이다
+     */
+    static final String UPSERT_SQL = "select count(*) from old table (" + MERGE_SQL + ")";
+
+    static Object[] insertIfAbsentParameters(Member member) {
+        return new Object[] {member.getMemberId(), member.getMemberId(), member.getMoney()};
+    }
+
+    static void setInsertIfAbsentParameters(PreparedStatement pstmt, Member member) throws SQLException {
+        pstmt.setString(1, member.getMemberId());
+        pstmt.setString(2, member.getMemberId());
+        pstmt.setInt(3, member.getMoney());
+    }
+
+    /**
+     * upsertAll에서 새로 만든 회원 수. existing은 merge 전에 락을 걸고 조회한 회원이다
+     */
+    static int createdCount(List<Member> members, Map<String, Member> existing) {
+        return (int) members.stream()
+            .map(Member::getMemberId)
+            .distinct()
+            .filter(memberId -> !existing.containsKey(memberId))
+            .count();
+    }
+}
@@ -0,0 +1,195 @@
+package hello.jdbc.repository.ex;
+
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.CannotSerializeTransactionException;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.PermissionDeniedDataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.InvalidResultSetAccessException;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.support.SQLErrorCodes;
+import org.springframework.jdbc.support.SQLExceptionSubclassTranslator;
+import org.springframework.jdbc.support.SQLExceptionTranslator;
+
+/**
+ * 예외 전환기 - DB 에러 코드로 스프링 예외를 찾는다
+ *
+ * SQLErrorCodeSQLExceptionTranslator와 같은 규칙을 사용하지만, 에러 코드 표를 생성할 때 미리 정렬된 int 배열로 만들어 둔다
+ * 예외를 전환할 때는 이분 탐색만 하므로 문자열 비교나 DB 메타데이터 조회가 없다
+ * 에러 코드 표에 없으면 SQLException 타입(SQLExceptionSubclassTranslator)으로 전환한다
+ *
+ * 커스텀 전환: 특정 에러 코드를 MyDuplicateKeyException 같은 직접 만든 예외로 바꿀 수 있다(translateToRuntime)
+ */
+public class ErrorCodeExceptionTranslator implements SQLExceptionTranslator {
+
+    /**
+     * 스프링 예외 종류. 선언 순서가 우선순위다(같은 에러 코드가 여러 종류에 있으면 앞의 것을 사용한다)
+     */
+    enum Category {
+        BAD_SQL_GRAMMAR,
+        INVALID_RESULT_SET_ACCESS,
+        DUPLICATE_KEY,
+        DATA_INTEGRITY_VIOLATION,
+        PERMISSION_DENIED,
+        DATA_ACCESS_RESOURCE_FAILURE,
+        TRANSIENT_DATA_ACCESS_RESOURCE,
+        CANNOT_ACQUIRE_LOCK,
+        DEADLOCK_LOSER,
+        CANNOT_SERIALIZE_TRANSACTION;
+
+        DataAccessException create(String task, String sql, SQLException ex) {
+            String message = buildMessage(task, sql, ex);
+            switch (this) {
+                case BAD_SQL_GRAMMAR:
+                    return new BadSqlGrammarException(task, sql != null ? sql : "", ex);
+                case INVALID_RESULT_SET_ACCESS:
+                    return new InvalidResultSetAccessException(task, sql != null ? sql : "", ex);
+                case DUPLICATE_KEY:
+                    return new DuplicateKeyException(message, ex);
+                case DATA_INTEGRITY_VIOLATION:
+                    return new DataIntegrityViolationException(message, ex);
+                case PERMISSION_DENIED:
+                    return new PermissionDeniedDataAccessException(message, ex);
+                case DATA_ACCESS_RESOURCE_FAILURE:
+                    return new DataAccessResourceFailureException(message, ex);
+                case TRANSIENT_DATA_ACCESS_RESOURCE:
+                    return new TransientDataAccessResourceException(message, ex);
+                case CANNOT_ACQUIRE_LOCK:
+                    return new CannotAcquireLockException(message, ex);
+                case DEADLOCK_LOSER:
+                    return new DeadlockLoserDataAccessException(message, ex);
+                default:
+                    return new CannotSerializeTransactionException(message, ex);
+            }
+        }
+    }
+
+    private final int[] codes; // 정렬된 에러 코드
+    private final Category[] categories; // codes와 같은 순서
+    private final int[] customCodes; // 정렬된 커스텀 에러 코드
+    private final Function<SQLException, ? extends RuntimeException>[] customFactories;
+    private final SQLExceptionTranslator fallbackTranslator = new SQLExceptionSubclassTranslator();
+
+    public ErrorCodeExceptionTranslator(SQLErrorCodes errorCodes) {
+        this(buildTable(errorCodes), new TreeMap<>());
+    }
+
+    @SuppressWarnings("unchecked")
+    private ErrorCodeExceptionTranslator(TreeMap<Integer, Category> table,
+        TreeMap<Integer, Function<SQLException, ? extends RuntimeException>> custom) {
+        this.codes = table.keySet().stream().mapToInt(Integer::intValue).toArray();
+        this.categories = table.values().toArray(new Category[0]);
+        this.customCodes = custom.keySet().stream().mapToInt(Integer::intValue).toArray();
+        this.customFactories = custom.values().toArray(new Function[0]);
+    }
+
+    /**
+     * 커스텀 전환을 추가한 새 전환기를 만든다. 기존 전환기는 바뀌지 않는다
+     * 예) withCustomTranslation(MyDuplicateKeyException::new, 23505)
+     */
+    public ErrorCodeExceptionTranslator withCustomTranslation(Function<SQLException, ? extends RuntimeException> factory,
+        int... errorCodes) {
+        TreeMap<Integer, Category> table = new TreeMap<>();
+        for (int i = 0; i < codes.length; i++) {
+            table.put(codes[i], categories[i]);
+        }
+        TreeMap<Integer, Function<SQLException, ? extends RuntimeException>> custom = new TreeMap<>();
+        for (int i = 0; i < customCodes.length; i++) {
+            custom.put(customCodes[i], customFactories[i]);
+        }
+        for (int errorCode : errorCodes) {
+            custom.put(errorCode, factory);
+        }
+        return new ErrorCodeExceptionTranslator(table, custom);
+    }
+
+    /**
+     * 스프링 예외로 전환한다. 항상 null이 아닌 예외를 돌려준다
+     */
+    @Override
+    public DataAccessException translate(String task, String sql, SQLException ex) {
+        SQLException sqlEx = unwrap(ex);
+
+        int index = Arrays.binarySearch(codes, sqlEx.getErrorCode());
+        if (index >= 0) {
+            return categories[index].create(task, sql, sqlEx);
+        }
+
+        DataAccessException translated = fallbackTranslator.translate(task, sql, sqlEx);
+        if (translated != null) {
+            return translated;
+        }
+        return new UncategorizedSQLException(task, sql, sqlEx);
+    }
+
+    /**
+     * 커스텀 전환이 등록된 에러 코드면 그 예외로, 아니면 스프링 예외로 전환한다
+     */
+    public RuntimeException translateToRuntime(String task, String sql, SQLException ex) {
+        SQLException sqlEx = unwrap(ex);
+        int index = Arrays.binarySearch(customCodes, sqlEx.getErrorCode());
+        if (index >= 0) {
+            return customFactories[index].apply(sqlEx);
+        }
+        return translate(task, sql, ex);
+    }
+
+    /**
+     * batch 실패는 실제 원인이 getNextException()에 들어있다
+     */
+    private static SQLException unwrap(SQLException ex) {
+        if (ex instanceof BatchUpdateException && ex.getNextException() != null) {
+            SQLException next = ex.getNextException();
+            if (next.getErrorCode() > 0 || next.getSQLState() != null) {
+                return next;
+            }
+        }
+        return ex;
+    }
+
+    private static String buildMessage(String task, String sql, SQLException ex) {
+        return task + "; " + (sql != null ? "SQL [" + sql + "]; " : "") + ex.getMessage();
+    }
+
+    private static TreeMap<Integer, Category> buildTable(SQLErrorCodes errorCodes) {
+        Map<Category, String[]> source = new EnumMap<>(Category.class); // 선언 순서(우선순위)대로 순회한다
+        source.put(Category.BAD_SQL_GRAMMAR, errorCodes.getBadSqlGrammarCodes());
+        source.put(Category.INVALID_RESULT_SET_ACCESS, errorCodes.getInvalidResultSetAccessCodes());
+        source.put(Category.DUPLICATE_KEY, errorCodes.getDuplicateKeyCodes());
+        source.put(Category.DATA_INTEGRITY_VIOLATION, errorCodes.getDataIntegrityViolationCodes());
+        source.put(Category.PERMISSION_DENIED, errorCodes.getPermissionDeniedCodes());
+        source.put(Category.DATA_ACCESS_RESOURCE_FAILURE, errorCodes.getDataAccessResourceFailureCodes());
+        source.put(Category.TRANSIENT_DATA_ACCESS_RESOURCE, errorCodes.getTransientDataAccessResourceCodes());
+        source.put(Category.CANNOT_ACQUIRE_LOCK, errorCodes.getCannotAcquireLockCodes());
+        source.put(Category.DEADLOCK_LOSER, errorCodes.getDeadlockLoserCodes());
+        source.put(Category.CANNOT_SERIALIZE_TRANSACTION, errorCodes.getCannotSerializeTransactionCodes());
+
+        TreeMap<Integer, Category> table = new TreeMap<>();
+        if (errorCodes.isUseSqlStateForTranslation()) {
+            return table; // 에러 코드 대신 SQLState를 사용하는 DB는 fallbackTranslator가 처리한다
+        }
+        for (Map.Entry<Category, String[]> entry : source.entrySet()) {
+            for (String code : entry.getValue()) {
+                try {
+                    table.putIfAbsent(Integer.parseInt(code.trim()), entry.getKey()); // 우선순위가 높은 종류가 먼저 들어간다
+                } catch (NumberFormatException e) {
+                    // 숫자가 아닌 에러 코드는 사용하지 않는다
+                }
+            }
+        }
+        return table;
+    }
+}
@@ -0,0 +1,72 @@
+package hello.jdbc.repository.ex;
+
+import java.sql.DatabaseMetaData;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.jdbc.support.SQLErrorCodes;
+import org.springframework.jdbc.support.SQLErrorCodesFactory;
+import org.springframework.util.ConcurrentReferenceHashMap;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 예외 전환기 저장소 - DataSource 마다 하나의 ErrorCodeExceptionTranslator를 공유한다
+ *
+ * SQLErrorCodeSQLExceptionTranslator는 처음 예외를 전환할 때 커넥션을 열어서 DB 종류를 확인한다
+ * 장애 상황(커넥션 풀이 이미 부족한 상황)에 커넥션을 하나 더 쓰게 되므로, 여기서는 리포지토리를 만들 때 미리 확인한다
+ *
+ * 커스텀 전환(MyDbException 등)을 사용하려면 리포지토리를 만들기 전에 register(dataSource, translator)로 등록한다
+ */
+@Slf4j
+public abstract class ExceptionTranslatorRegistry {
+
+    // DataSource가 사라지면 전환기도 함께 정리된다
+    private static final ConcurrentReferenceHashMap<DataSource, ErrorCodeExceptionTranslator> translators =
+        new ConcurrentReferenceHashMap<>(16, ConcurrentReferenceHashMap.ReferenceType.WEAK);
+
+    /**
+     * 등록된 전환기를 돌려준다. 없으면 지금 DB 종류를 확인해서 만든다
+     * DB에 연결할 수 없으면 DataAccessResourceFailureException. 실패한 결과는 저장하지 않으므로 다음 호출에서 다시 확인한다
+     */
+    public static ErrorCodeExceptionTranslator getTranslator(DataSource dataSource) {
+        return translators.computeIfAbsent(dataSource, key -> {
+            String databaseName = databaseProductName(key); // 커넥션을 열어 DB 종류를 확인한다
+            log.info("register exception translator dataSource={}, databaseProductName={}", key, databaseName);
+            return new ErrorCodeExceptionTranslator(SQLErrorCodesFactory.getInstance().getErrorCodes(databaseName));
+        });
+    }
+
+    /**
+     * DB 종류를 알고 있으면 커넥션 없이 등록한다. 예) register(dataSource, "H2")
+     */
+    public static ErrorCodeExceptionTranslator register(DataSource dataSource, String databaseName) {
+        ErrorCodeExceptionTranslator translator = new ErrorCodeExceptionTranslator(
+            SQLErrorCodesFactory.getInstance().getErrorCodes(databaseName));
+        translators.put(dataSource, translator);
+        return translator;
+    }
+
+    /**
+     * 커스텀 전환을 추가한 전환기로 바꾼다
+     */
+    public static void register(DataSource dataSource, ErrorCodeExceptionTranslator translator) {
+        translators.put(dataSource, translator);
+    }
+
+    /**
+     * SQLErrorCodesFactory.getErrorCodes(DataSource)는 연결에 실패하면 빈 에러 코드 표를 돌려준다
+     * 그 표를 저장하면 DB가 살아난 뒤에도 에러 코드로 전환하지 못하므로, DB 종류는 직접 확인하고 실패하면 예외를 던진다
+     */
+    private static String databaseProductName(DataSource dataSource) {
+        try {
+            String name = JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName);
+            return JdbcUtils.commonDatabaseName(name);
+        } catch (MetaDataAccessException e) {
+            throw new DataAccessResourceFailureException("could not determine database product name", e);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package hello.jdbc.repository.ex;
 
+import java.sql.SQLException;
+
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -8,21 +10,58 @@ import lombok.extern.slf4j.Slf4j;
  * 체크 예외를 런타임 예외로 변경
  * MemberRepository 인터페이스 사용
  * throws SQLException 제거
+ *
+ * 예상된 결과(키 중복 등)로 던지는 예외는 스택 트레이스를 만들지 않을 수 있다(stackless 모드)
+ * 스택 트레이스를 채우는 비용이 예외 생성 비용의 대부분이다. 원인 예외(cause)와 에러 코드는 그대로 남는다
+ * -Dhello.jdbc.stacklessExpectedExceptions=false 로 끌 수 있다(디버깅할 때)
  */
 public class MyDbException extends RuntimeException {
 
+    private static volatile boolean stacklessExpected =
+        Boolean.parseBoolean(System.getProperty("hello.jdbc.stacklessExpectedExceptions", "true"));
+
+    private final int errorCode; // DB 에러 코드. 원인이 SQLException이 아니면 0
+
     public MyDbException() {
+        this.errorCode = 0;
     }
 
     public MyDbException(String message) {
         super(message);
+        this.errorCode = 0;
     }
 
     public MyDbException(String message, Throwable cause) {
         super(message, cause);
+        this.errorCode = errorCodeOf(cause);
     }
 
     public MyDbException(Throwable cause) { // 원인 예외를 파라미터로 받는 생성자
         super(cause);
+        this.errorCode = errorCodeOf(cause);
+    }
+
+    /**
+     * 예상된 결과로 던지는 예외용 생성자. stackless 모드면 스택 트레이스를 채우지 않는다
+     */
+    protected MyDbException(Throwable cause, boolean expected) {
+        super(cause == null ? null : cause.toString(), cause, true, !(expected && stacklessExpected));
+        this.errorCode = errorCodeOf(cause);
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public static boolean isStacklessExpected() {
+        return stacklessExpected;
+    }
+
+    public static void setStacklessExpected(boolean stacklessExpected) {
+        MyDbException.stacklessExpected = stacklessExpected;
+    }
+
+    private static int errorCodeOf(Throwable cause) {
+        return cause instanceof SQLException ? ((SQLException) cause).getErrorCode() : 0;
     }
 }
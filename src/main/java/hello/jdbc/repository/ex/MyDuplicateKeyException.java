@@ -16,4 +16,15 @@ public class MyDuplicateKeyException extends MyDbException {
     public MyDuplicateKeyException(Throwable cause) {
         super(cause);
     }
+
+    private MyDuplicateKeyException(Throwable cause, boolean expected) {
+        super(cause, expected);
+    }
+
+    /**
+     * 잡아서 복구할 예정인 키 중복(예: 새 id로 다시 저장)에 사용한다. stackless 모드면 스택 트레이스를 만들지 않는다
+     */
+    public static MyDuplicateKeyException expected(Throwable cause) {
+        return new MyDuplicateKeyException(cause, true);
+    }
 }
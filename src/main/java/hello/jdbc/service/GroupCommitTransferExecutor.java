@@ -0,0 +1,214 @@
+package hello.jdbc.service;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 그룹 커밋 - 여러 이체 요청을 모아서 하나의 트랜잭션으로 커밋한다
+ *
+ * 요청은 큐에 쌓이고, 작업 쓰레드가 최대 maxBatchSize 건 또는 maxWait 시간 동안 모아서 한 트랜잭션에서 처리한다
+ * 각 이체는 savepoint(NESTED) 안에서 실행되므로 한 건이 실패해도 그 이체만 롤백된다
+ * 결과(future)는 트랜잭션이 커밋된 뒤에 알려준다. 커밋이 실패하면 묶음 전체가 실패한다
+ */
+@Slf4j
+public class GroupCommitTransferExecutor implements Closeable {
+
+    private static final int QUEUE_CAPACITY_PER_BATCH = 16;
+
+    private final MemberServiceV4 memberService;
+    private final TransactionTemplate groupTxTemplate; // 묶음 전체를 감싸는 트랜잭션
+    private final TransactionTemplate transferTxTemplate; // 이체 한 건을 감싸는 savepoint
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+
+    private final BlockingQueue<TransferRequest> queue;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong transferCount = new AtomicLong();
+    private final AtomicLong failedTransferCount = new AtomicLong();
+
+    public GroupCommitTransferExecutor(MemberServiceV4 memberService, PlatformTransactionManager transactionManager,
+        int maxBatchSize, Duration maxWait) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.memberService = memberService;
+        this.groupTxTemplate = new TransactionTemplate(transactionManager);
+        this.transferTxTemplate = new TransactionTemplate(transactionManager);
+        this.transferTxTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_NESTED);
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.queue = new LinkedBlockingQueue<>(maxBatchSize * QUEUE_CAPACITY_PER_BATCH); // 가득 차면 요청을 거절한다
+
+        this.worker = new Thread(this::run, "group-commit-transfer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 이체를 요청한다. 이체가 포함된 트랜잭션이 커밋되면 future가 완료된다
+     */
+    public CompletableFuture<Void> submit(String fromId, String toId, int money) {
+        TransferRequest request = new TransferRequest(fromId, toId, money);
+        if (!running) {
+            request.future.completeExceptionally(new RejectedExecutionException("executor is closed"));
+        } else if (!queue.offer(request)) {
+            request.future.completeExceptionally(new RejectedExecutionException("transfer queue is full"));
+        } else if (!running && queue.remove(request)) {
+            // 넣는 사이에 종료됐다. 작업 쓰레드가 가져가지 못한 요청은 직접 실패 처리한다
+            request.future.completeExceptionally(new RejectedExecutionException("executor is closed"));
+        }
+        return request.future;
+    }
+
+    /**
+     * 새 요청을 받지 않고, 큐에 남은 요청을 모두 처리한 뒤 종료한다
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 종료 시간 안에 처리하지 못한 요청
+        TransferRequest request;
+        while ((request = queue.poll()) != null) {
+            request.future.completeExceptionally(new RejectedExecutionException("executor is closed"));
+        }
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getTransferCount() {
+        return transferCount.get();
+    }
+
+    public long getFailedTransferCount() {
+        return failedTransferCount.get();
+    }
+
+    public double getAverageBatchSize() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0.0 : (double) transferCount.get() / batches;
+    }
+
+    private void run() {
+        List<TransferRequest> batch = new ArrayList<>(maxBatchSize);
+        boolean interrupted = false;
+        while (!interrupted && (running || !queue.isEmpty())) {
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                // 모아둔 요청까지만 처리하고 종료한다. 남은 요청은 close()에서 실패 처리한다
+                interrupted = true;
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                execute(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 첫 요청을 받은 뒤 maxBatchSize 건이 모이거나 maxWait 시간이 지날 때까지 모은다
+     */
+    private void collect(List<TransferRequest> batch) throws InterruptedException {
+        TransferRequest first = queue.poll(100, TimeUnit.MILLISECONDS); // 종료 여부를 확인하기 위해 주기적으로 깨어난다
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        queue.drainTo(batch, maxBatchSize - batch.size());
+
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            TransferRequest next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+            queue.drainTo(batch, maxBatchSize - batch.size());
+        }
+    }
+
+    private void execute(List<TransferRequest> batch) {
+        try {
+            groupTxTemplate.executeWithoutResult(status -> {
+                for (TransferRequest request : batch) {
+                    try {
+                        // 실패하면 savepoint까지만 롤백된다. 묶음의 다른 이체는 영향을 받지 않는다
+                        transferTxTemplate.executeWithoutResult(
+                            transferStatus -> memberService.accountTransfer(request.fromId, request.toId, request.money));
+                    } catch (RuntimeException e) {
+                        request.failure = e;
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // 커밋 실패: 묶음 전체가 롤백됐다
+            log.info("group commit failed batchSize={}", batch.size(), e);
+            for (TransferRequest request : batch) {
+                request.future.completeExceptionally(request.failure != null ? request.failure : e);
+            }
+            countBatch(batch.size(), batch.size());
+            return;
+        }
+
+        int failed = 0;
+        for (TransferRequest request : batch) {
+            if (request.failure == null) {
+                request.future.complete(null);
+            } else {
+                failed++;
+                request.future.completeExceptionally(request.failure);
+            }
+        }
+        countBatch(batch.size(), failed);
+    }
+
+    private void countBatch(int size, int failed) {
+        batchCount.incrementAndGet();
+        transferCount.addAndGet(size);
+        failedTransferCount.addAndGet(failed);
+    }
+
+    private static class TransferRequest {
+
+        private final String fromId;
+        private final String toId;
+        private final int money;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private RuntimeException failure; // 작업 쓰레드만 사용한다
+
+        TransferRequest(String fromId, String toId, int money) {
+            this.fromId = fromId;
+            this.toId = toId;
+            this.money = money;
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package hello.jdbc.service;
 
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
 import org.springframework.transaction.annotation.Transactional;
+
 import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
 import hello.jdbc.repository.MemberRepository;
 import lombok.extern.slf4j.Slf4j;
 
@@ -25,13 +31,25 @@ public class MemberServiceV4 {
         bizLogic(fromId, toId, money);
     }
 
+    /**
+     * 조회 없이 한 번의 update로 이체한다. 잔액 부족이나 없는 회원은 예외 대신 결과로 알려준다
+     */
+    @Transactional
+    public TransferResult transfer(String fromId, String toId, int money) {
+        TransferResult result = memberRepository.transfer(fromId, toId, money);
+        log.info("transfer fromId={}, toId={}, money={}, result={}", fromId, toId, money, result);
+        return result;
+    }
+
     /**
      * 비즈니스 로직: member의 money update
      **/
     private void bizLogic(String fromId, String toId, int money) { // throws SQLException 제거가 가능(Repo에서 언체크로 변환됨)
         // 비즈니스 로직
-        Member fromMember = memberRepository.findById(fromId); // 보내는 멤버
-        Member toMember = memberRepository.findById(toId);
+        // 두 회원을 한 번의 쿼리로 조회하면서 row 락을 건다. 항상 member_id 순서로 잠그므로 반대 방향 이체와 데드락이 생기지 않는다
+        Map<String, Member> members = memberRepository.findByIdsForUpdate(List.of(fromId, toId));
+        Member fromMember = getMember(members, fromId); // 보내는 멤버
+        Member toMember = getMember(members, toId);
 
         memberRepository.update(fromId, fromMember.getMoney() - money); // fromMember의 money 출금 처리
         // 예외 발생 상황 만들기
@@ -39,6 +57,14 @@ public class MemberServiceV4 {
         memberRepository.update(toId, toMember.getMoney() + money); // fromMember의 money 출금 처리
     }
 
+    private Member getMember(Map<String, Member> members, String memberId) {
+        Member member = members.get(memberId);
+        if (member == null) {
+            throw new NoSuchElementException("member not found memberId=" + memberId);
+        }
+        return member;
+    }
+
     private void validation(Member toMember) {
         if (toMember.getMemberId().equals("ex")) {
             throw new IllegalStateException("이체 중 예외 발생");
@@ -0,0 +1,196 @@
+package hello.jdbc.service;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 재시도 - 일시적인 DB 오류(데드락, 락 대기 시간 초과 등)가 나면 트랜잭션 전체를 다시 실행한다
+ *
+ * 리포지토리가 SQLException을 스프링 예외로 전환해주기 때문에 예외 타입만 보고 재시도 여부를 판단할 수 있다
+ * 재시도 간격은 지수적으로 늘리고 무작위로 흩어서(jitter) 여러 요청이 같은 순간에 다시 몰리지 않게 한다
+ * 재시도 예산: 요청마다 budgetRatio 만큼 재시도 토큰이 쌓이고 재시도할 때 1개씩 쓴다
+ * 경합이 심해서 토큰이 바닥나면 재시도하지 않고 바로 실패한다. 재시도가 부하를 더 키우는 것을 막는다
+ *
+ * bindTo(registry)로 Micrometer에 등록하면 아래 메트릭을 내보낸다
+ * member.transfer.retry.calls (FunctionCounter)   : 호출 수
+ * member.transfer.retries (FunctionCounter)        : 재시도 수
+ * member.transfer.retry.giveups (FunctionCounter)  : 재시도를 포기한 수. reason 태그(max_attempts, budget_exhausted)
+ * member.transfer.retry.budget (Gauge)             : 남은 재시도 토큰
+ */
+@Slf4j
+public class RetryingTransferExecutor implements MeterBinder {
+
+    private static final long TOKEN_SCALE = 1000; // 토큰을 정수로 다루기 위한 배율
+
+    private final MemberServiceV4 memberService;
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final long depositPerCall; // 요청 1건마다 쌓이는 토큰(* TOKEN_SCALE)
+    private final long maxTokens;
+    private final AtomicLong tokens;
+
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong giveUpCount = new AtomicLong(); // 최대 시도 횟수를 넘겨서 실패
+    private final AtomicLong budgetExhaustedCount = new AtomicLong(); // 재시도 예산이 없어서 실패
+
+    public RetryingTransferExecutor(MemberServiceV4 memberService) {
+        this(memberService, 5, Duration.ofMillis(5), Duration.ofMillis(200), 0.1, 100);
+    }
+
+    /**
+     * @param maxAttempts 처음 시도를 포함한 최대 시도 횟수
+     * @param budgetRatio 요청 1건마다 쌓이는 재시도 토큰. 0.1이면 평소 요청의 10%까지 재시도할 수 있다
+     * @param maxBudget 쌓아둘 수 있는 최대 토큰 수
+     */
+    public RetryingTransferExecutor(MemberServiceV4 memberService, int maxAttempts, Duration initialBackoff,
+        Duration maxBackoff, double budgetRatio, int maxBudget) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        }
+        this.memberService = memberService;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+        this.depositPerCall = (long) (budgetRatio * TOKEN_SCALE);
+        this.maxTokens = maxBudget * TOKEN_SCALE;
+        this.tokens = new AtomicLong(maxTokens);
+    }
+
+    public void accountTransfer(String fromId, String toId, int money) {
+        execute(() -> {
+            memberService.accountTransfer(fromId, toId, money);
+            return null;
+        });
+    }
+
+    /**
+     * work는 호출할 때마다 새 트랜잭션을 시작해야 한다(@Transactional 서비스 메서드 등)
+     */
+    public <T> T execute(Supplier<T> work) {
+        callCount.incrementAndGet();
+        deposit();
+
+        // 바깥 트랜잭션에 참여한 상태에서는 재시도해도 같은 트랜잭션이 계속 실패한다
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return work.get();
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return work.get();
+            } catch (RuntimeException e) {
+                if (!isRetryable(e)) {
+                    throw e;
+                }
+                if (attempt >= maxAttempts) {
+                    giveUpCount.incrementAndGet();
+                    log.info("give up after {} attempts", attempt, e);
+                    throw e;
+                }
+                if (!withdraw()) {
+                    budgetExhaustedCount.incrementAndGet();
+                    log.info("retry budget exhausted", e);
+                    throw e;
+                }
+                retryCount.incrementAndGet();
+                log.info("retry attempt={} cause={}", attempt, e.toString());
+                backoff(attempt, e);
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("member.transfer.retry.calls", callCount, AtomicLong::get)
+            .description("transfer calls through the retrying executor").register(registry);
+        FunctionCounter.builder("member.transfer.retries", retryCount, AtomicLong::get)
+            .description("transfer retries").register(registry);
+        FunctionCounter.builder("member.transfer.retry.giveups", giveUpCount, AtomicLong::get)
+            .tag("reason", "max_attempts").description("transfers failed after the last attempt").register(registry);
+        FunctionCounter.builder("member.transfer.retry.giveups", budgetExhaustedCount, AtomicLong::get)
+            .tag("reason", "budget_exhausted").description("transfers failed without retry budget").register(registry);
+        Gauge.builder("member.transfer.retry.budget", this, RetryingTransferExecutor::getRemainingBudget)
+            .description("remaining retry tokens").register(registry);
+    }
+
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    public long getGiveUpCount() {
+        return giveUpCount.get();
+    }
+
+    public long getBudgetExhaustedCount() {
+        return budgetExhaustedCount.get();
+    }
+
+    public double getRemainingBudget() {
+        return (double) tokens.get() / TOKEN_SCALE;
+    }
+
+    private boolean isRetryable(RuntimeException e) {
+        // DeadlockLoser, CannotAcquireLock 모두 TransientDataAccessException의 자식이다
+        return e instanceof DeadlockLoserDataAccessException
+            || e instanceof CannotAcquireLockException
+            || e instanceof TransientDataAccessException;
+    }
+
+    /**
+     * full jitter: 0 ~ min(maxBackoff, initialBackoff * 2^(attempt-1)) 사이에서 무작위로 기다린다
+     */
+    private void backoff(int attempt, RuntimeException cause) {
+        long ceiling = initialBackoffNanos << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffNanos) {
+            ceiling = maxBackoffNanos;
+        }
+        long sleepNanos = ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+        try {
+            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw cause; // 기다리는 중에 중단되면 마지막 실패를 그대로 던진다
+        }
+    }
+
+    private void deposit() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= maxTokens) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(maxTokens, current + depositPerCall)));
+    }
+
+    private boolean withdraw() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN_SCALE) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - TOKEN_SCALE));
+        return true;
+    }
+}
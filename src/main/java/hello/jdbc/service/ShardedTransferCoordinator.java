@@ -0,0 +1,319 @@
+package hello.jdbc.service;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import hello.jdbc.domain.TransferResult;
+import hello.jdbc.repository.MemberRepository;
+import hello.jdbc.repository.ShardedMemberRepository;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 샤드 이체 - 두 회원이 같은 샤드면 한 트랜잭션으로, 다른 샤드면 saga(출금 후 입금)로 이체한다
+ *
+ * 같은 샤드: 그 샤드의 트랜잭션 하나로 끝난다(대부분의 이체)
+ * 다른 샤드: 두 DB를 묶는 트랜잭션이 없으므로 단계마다 커밋하고, 진행 상황을 보내는 쪽 샤드의 transfer_log에 남긴다
+ * 1. 보내는 샤드: 출금 + transfer_log(DEBITED, 받는 샤드 이름) 저장을 한 트랜잭션으로 커밋
+ * 2. 받는 샤드: transfer_applied 저장 + 입금을 한 트랜잭션으로 커밋. transfer_applied의 키 중복으로 두 번 입금되지 않는다
+ * 3. 보내는 샤드: transfer_log를 DONE으로 바꾼다
+ * 2단계는 항상 transfer_log에 기록한 받는 샤드에서 실행한다. 그래야 transfer_applied가 같은 샤드에 남아 중복 입금을 막는다
+ * 받는 회원이 샤드 이동으로 다른 샤드에 있으면, 기록한 받는 샤드를 바꾸고 그 샤드에서 다시 입금한다
+ * 받는 회원이 어디에도 없으면 출금을 되돌린다(COMPENSATED). 그 외 실패는 DEBITED로 남기고 recover()가 다시 실행한다
+ *
+ * 경로별(같은 샤드, 다른 샤드) 처리 건수와 시간을 따로 센다
+ */
+@Slf4j
+public class ShardedTransferCoordinator {
+
+    static final String DEBITED = "DEBITED";
+    static final String DONE = "DONE";
+    static final String COMPENSATED = "COMPENSATED";
+
+    private final ShardedMemberRepository memberRepository;
+    private final Map<String, DataSource> dataSources;
+    private final Map<String, ShardContext> contexts = new ConcurrentHashMap<>();
+
+    private final LongAdder sameShardCount = new LongAdder();
+    private final LongAdder sameShardNanos = new LongAdder();
+    private final LongAdder crossShardCount = new LongAdder();
+    private final LongAdder crossShardNanos = new LongAdder();
+    private final LongAdder compensatedCount = new LongAdder();
+    private final LongAdder pendingCount = new LongAdder(); // 입금하지 못하고 recover()로 넘긴 이체
+    private final LongAdder recoveredCount = new LongAdder();
+
+    /**
+     * @param dataSources 샤드 이름 -> DataSource. 샤드 이동(startMigration)으로 추가할 샤드도 넣어둔다
+     */
+    public ShardedTransferCoordinator(ShardedMemberRepository memberRepository, Map<String, DataSource> dataSources) {
+        this.memberRepository = memberRepository;
+        this.dataSources = new HashMap<>(dataSources);
+        memberRepository.getShardNames().forEach(this::context);
+    }
+
+    public TransferResult accountTransfer(String fromId, String toId, int money) {
+        if (money <= 0) {
+            throw new IllegalArgumentException("money must be positive: " + money);
+        }
+        if (fromId.equals(toId)) {
+            throw new IllegalArgumentException("cannot transfer to the same member: " + fromId);
+        }
+        if (memberRepository.isMigrating()) {
+            memberRepository.moveIfNeeded(fromId); // 샤드 안에서 직접 처리하므로 먼저 새 위치로 옮긴다
+            memberRepository.moveIfNeeded(toId);
+        }
+
+        ShardContext from = context(memberRepository.shardNameFor(fromId));
+        ShardContext to = context(memberRepository.shardNameFor(toId));
+
+        long start = System.nanoTime();
+        if (from == to) {
+            try {
+                return from.txTemplate.execute(status -> from.repository.transfer(fromId, toId, money));
+            } finally {
+                sameShardCount.increment();
+                sameShardNanos.add(System.nanoTime() - start);
+            }
+        }
+        try {
+            return crossShardTransfer(from, to, fromId, toId, money);
+        } finally {
+            crossShardCount.increment();
+            crossShardNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 입금하지 못한 이체(olderThan 보다 오래된 DEBITED)를 다시 실행한다
+     * @return 처리한 건수(DONE 또는 COMPENSATED)
+     */
+    public int recover(Duration olderThan) {
+        int recovered = 0;
+        Timestamp before = new Timestamp(System.currentTimeMillis() - olderThan.toMillis());
+        for (String shardName : memberRepository.getShardNames()) {
+            ShardContext from = context(shardName);
+            List<Map<String, Object>> pending = from.template.queryForList(
+                "select transfer_id, from_id, to_id, to_shard, money from transfer_log where status = ? and created_at < ?",
+                DEBITED, before);
+            for (Map<String, Object> row : pending) {
+                String transferId = (String) row.get("TRANSFER_ID");
+                try {
+                    complete(from, transferId, (String) row.get("FROM_ID"), (String) row.get("TO_ID"),
+                        (String) row.get("TO_SHARD"), ((Number) row.get("MONEY")).intValue());
+                    recovered++;
+                    recoveredCount.increment();
+                } catch (RuntimeException e) {
+                    log.warn("recover failed transferId={}", transferId, e); // 다음 recover()에서 다시 시도한다
+                }
+            }
+        }
+        return recovered;
+    }
+
+    public long getSameShardCount() {
+        return sameShardCount.sum();
+    }
+
+    public long getCrossShardCount() {
+        return crossShardCount.sum();
+    }
+
+    public long getSameShardAverageMicros() {
+        return averageMicros(sameShardNanos, sameShardCount);
+    }
+
+    public long getCrossShardAverageMicros() {
+        return averageMicros(crossShardNanos, crossShardCount);
+    }
+
+    public long getCompensatedCount() {
+        return compensatedCount.sum();
+    }
+
+    public long getPendingCount() {
+        return pendingCount.sum();
+    }
+
+    public long getRecoveredCount() {
+        return recoveredCount.sum();
+    }
+
+    private TransferResult crossShardTransfer(ShardContext from, ShardContext to, String fromId, String toId, int money) {
+        // 받는 회원이 없으면 출금하지 않는다(대부분의 보상 처리를 피한다)
+        if (!to.repository.findByIds(List.of(toId)).containsKey(toId)) {
+            return TransferResult.UNKNOWN_MEMBER;
+        }
+
+        // 1. 출금과 이체 기록을 함께 커밋한다
+        String transferId = UUID.randomUUID().toString();
+        TransferResult debit = from.txTemplate.execute(status -> {
+            if (from.repository.withdraw(fromId, money) == 0) {
+                status.setRollbackOnly();
+                return from.repository.findByIds(List.of(fromId)).containsKey(fromId)
+                    ? TransferResult.INSUFFICIENT_FUNDS : TransferResult.UNKNOWN_MEMBER;
+            }
+            from.template.update("insert into transfer_log(transfer_id, from_id, to_id, to_shard, money, status)"
+                + " values (?, ?, ?, ?, ?, ?)", transferId, fromId, toId, to.name, money, DEBITED);
+            return TransferResult.SUCCESS;
+        });
+        if (debit != TransferResult.SUCCESS) {
+            return debit;
+        }
+
+        // 2, 3. 입금하고 이체 기록을 끝낸다. 실패하면 recover()가 다시 실행한다
+        try {
+            return complete(from, transferId, fromId, toId, to.name, money);
+        } catch (RuntimeException e) {
+            pendingCount.increment();
+            log.warn("credit failed, left for recovery transferId={}", transferId, e);
+            throw e;
+        }
+    }
+
+    /**
+     * 입금(2단계)과 이체 기록 완료(3단계). 여러 번 실행해도 한 번만 입금된다
+     * @param toShard transfer_log에 기록한 받는 샤드
+     */
+    private TransferResult complete(ShardContext from, String transferId, String fromId, String toId, String toShard,
+        int money) {
+        String shardName = toShard;
+        while (true) {
+            if (credit(context(shardName), transferId, toId, money)) {
+                from.template.update("update transfer_log set status = ? where transfer_id = ?", DONE, transferId);
+                return TransferResult.SUCCESS;
+            }
+
+            // 기록한 샤드에 받는 회원이 없다. 이동했으면 받는 샤드를 바꾸고 다시 입금한다
+            String movedTo = movedShard(toId, shardName);
+            if (movedTo == null) {
+                break;
+            }
+            int updated = from.template.update(
+                "update transfer_log set to_shard = ? where transfer_id = ? and status = ? and to_shard = ?",
+                movedTo, transferId, DEBITED, shardName);
+            if (updated == 0) {
+                // 다른 recover()가 먼저 받는 샤드를 바꾸거나 이체를 끝냈다
+                Map<String, Object> row = from.template.queryForMap(
+                    "select to_shard, status from transfer_log where transfer_id = ?", transferId);
+                if (!DEBITED.equals(row.get("STATUS"))) {
+                    return DONE.equals(row.get("STATUS")) ? TransferResult.SUCCESS : TransferResult.UNKNOWN_MEMBER;
+                }
+                shardName = (String) row.get("TO_SHARD");
+                continue;
+            }
+            log.info("receiver moved, retry credit transferId={} {} -> {}", transferId, shardName, movedTo);
+            shardName = movedTo;
+        }
+
+        // 보상: 출금을 되돌린다
+        String checkedShard = shardName;
+        boolean compensated = Boolean.TRUE.equals(from.txTemplate.execute(status -> {
+            int updated = from.template.update(
+                "update transfer_log set status = ? where transfer_id = ? and status = ? and to_shard = ?",
+                COMPENSATED, transferId, DEBITED, checkedShard);
+            if (updated == 0) {
+                return false; // 다른 recover()가 이미 되돌렸거나 받는 샤드를 바꿨다
+            }
+            from.repository.addMoney(fromId, money);
+            return true;
+        }));
+        if (compensated) {
+            compensatedCount.increment();
+            log.info("transfer compensated transferId={}", transferId);
+        }
+        return TransferResult.UNKNOWN_MEMBER;
+    }
+
+    /**
+     * 받는 샤드에서 transfer_applied 저장과 입금을 한 트랜잭션으로 커밋한다
+     * @return 입금했거나 이미 입금했으면 true, 받는 회원이 이 샤드에 없으면 false
+     */
+    private boolean credit(ShardContext to, String transferId, String toId, int money) {
+        return Boolean.TRUE.equals(to.txTemplate.execute(status -> {
+            try {
+                to.template.update("insert into transfer_applied(transfer_id) values (?)", transferId);
+            } catch (DuplicateKeyException e) {
+                return true; // 이미 입금했다
+            }
+            if (to.repository.addMoney(toId, money) == 0) {
+                status.setRollbackOnly(); // 받는 회원이 삭제됐거나 다른 샤드로 옮겨졌다
+                return false;
+            }
+            return true;
+        }));
+    }
+
+    /**
+     * 받는 회원이 shardName이 아닌 샤드로 옮겨졌으면 그 샤드 이름, 아니면 null
+     */
+    private String movedShard(String toId, String shardName) {
+        if (memberRepository.isMigrating()) {
+            memberRepository.moveIfNeeded(toId);
+        }
+        String current = memberRepository.shardNameFor(toId);
+        if (current.equals(shardName)) {
+            return null;
+        }
+        return context(current).repository.findByIds(List.of(toId)).containsKey(toId) ? current : null;
+    }
+
+    /**
+     * 샤드 이동으로 추가된 샤드도 사용할 수 있도록 처음 사용할 때 만든다
+     */
+    private ShardContext context(String shardName) {
+        return contexts.computeIfAbsent(shardName, name -> {
+            DataSource dataSource = dataSources.get(name);
+            if (dataSource == null) {
+                throw new IllegalStateException("no data source for shard: " + name);
+            }
+            ShardContext context = new ShardContext(name, dataSource);
+            context.createTables();
+            return context;
+        });
+    }
+
+    private static long averageMicros(LongAdder nanos, LongAdder count) {
+        long n = count.sum();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(nanos.sum() / n);
+    }
+
+    /**
+     * 샤드 하나의 리포지토리, 트랜잭션, 이체 기록 테이블
+     * 리포지토리와 JdbcTemplate이 같은 DataSource를 사용하므로 txTemplate 안에서 같은 트랜잭션에 참여한다
+     */
+    private class ShardContext {
+
+        private final String name;
+        private final MemberRepository repository;
+        private final JdbcTemplate template;
+        private final TransactionTemplate txTemplate;
+
+        ShardContext(String name, DataSource dataSource) {
+            this.name = name;
+            this.repository = memberRepository.repositoryOf(name);
+            this.template = new JdbcTemplate(dataSource);
+            this.txTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        }
+
+        void createTables() {
+            template.execute("create table if not exists transfer_log ("
+                + "transfer_id varchar(36) primary key, from_id varchar(10) not null, to_id varchar(10) not null,"
+                + " to_shard varchar(32) not null, money integer not null, status varchar(16) not null, created_at timestamp default current_timestamp)");
+            template.execute("create table if not exists transfer_applied (transfer_id varchar(36) primary key,"
+                + " applied_at timestamp default current_timestamp)");
+        }
+    }
+}
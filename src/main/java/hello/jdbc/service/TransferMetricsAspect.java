@@ -0,0 +1,68 @@
+package hello.jdbc.service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * 이체 메트릭 - 서비스의 accountTransfer() 호출 시간을 결과(success, error)와 예외 종류별로 기록한다
+ *
+ * member.transfer (Timer) 태그: service, outcome, exception
+ * 트랜잭션 AOP보다 먼저(바깥에서) 실행되므로 커넥션 획득, 커밋, 롤백 시간까지 포함된다
+ * MetricsMemberRepository의 기록과 비교하면 이체 시간 중 쿼리 밖에서 쓴 시간(커넥션 획득, 커밋 등)을 알 수 있다
+ *
+ * 컴포넌트 스캔 대상이 아니므로 @Bean으로 등록하거나(MetricsConfig, hello.jdbc.metrics.jmx.enabled=true) AspectJProxyFactory에 직접 추가한다
+ */
+@Aspect
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class TransferMetricsAspect {
+
+    public static final String TIMER_NAME = "member.transfer";
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public TransferMetricsAspect(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Around("execution(* hello.jdbc.service..*.accountTransfer(..))")
+    public Object recordTransfer(ProceedingJoinPoint joinPoint) throws Throwable {
+        String service = joinPoint.getSignature().getDeclaringType().getSimpleName();
+        long start = System.nanoTime();
+        String exception = null;
+        try {
+            return joinPoint.proceed();
+        } catch (Throwable e) {
+            exception = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            timer(service, exception).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Timer timer(String service, String exception) {
+        String outcome = exception == null ? "success" : "error";
+        String tagValue = exception == null ? "none" : exception;
+        return timers.computeIfAbsent(service + "|" + tagValue, key -> Timer.builder(TIMER_NAME)
+            .description("accountTransfer 호출 시간(트랜잭션 포함)")
+            .tag("service", service)
+            .tag("outcome", outcome)
+            .tag("exception", tagValue)
+            .publishPercentiles(0.5, 0.99, 0.999)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofNanos(100_000))
+            .maximumExpectedValue(Duration.ofSeconds(10))
+            .register(registry));
+    }
+}
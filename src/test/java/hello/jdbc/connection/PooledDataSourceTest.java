@@ -0,0 +1,140 @@
+package hello.jdbc.connection;
+
+import static hello.jdbc.connection.ConnectionConst.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+class PooledDataSourceTest {
+
+    PooledDataSource dataSource;
+
+    @AfterEach
+    void after() {
+        dataSource.close();
+    }
+
+    @Test
+    void reuse() throws SQLException {
+        dataSource = new PooledDataSource(URL, USERNAME, PASSWORD, 0, 1, 1000);
+
+        // 반납한 커넥션을 다시 빌려오면 새 커넥션을 만들지 않는다
+        Connection con1 = dataSource.getConnection();
+        con1.close();
+        Connection con2 = dataSource.getConnection();
+        con2.close();
+
+        log.info("pool = {}, avg wait = {}ns", dataSource, dataSource.getAverageBorrowWaitNanos());
+        assertThat(dataSource.getTotalConnections()).isEqualTo(1);
+        assertThat(dataSource.getBorrowCount()).isEqualTo(2);
+    }
+
+    @Test
+    void resetOnReturn() throws SQLException {
+        dataSource = new PooledDataSource(URL, USERNAME, PASSWORD, 0, 1, 1000);
+
+        // 트랜잭션을 시작한 채로 반납해도 다음 사용자는 오토 커밋 상태로 받는다
+        Connection con1 = dataSource.getConnection();
+        con1.setAutoCommit(false);
+        con1.close();
+
+        Connection con2 = dataSource.getConnection();
+        assertThat(con2.getAutoCommit()).isTrue();
+        con2.close();
+    }
+
+    @Test
+    void statementCache() throws SQLException {
+        dataSource = new PooledDataSource(URL, USERNAME, PASSWORD, 0, 1, 1000);
+        String sql = "select * from member where member_id = ?";
+
+        // 같은 커넥션에서 같은 SQL을 다시 준비하면 캐시된 statement를 재사용한다
+        for (int i = 0; i < 3; i++) {
+            Connection con = dataSource.getConnection();
+            PreparedStatement pstmt = con.prepareStatement(sql);
+            pstmt.setString(1, "memberA");
+            pstmt.executeQuery().close();
+            pstmt.close();
+            con.close();
+        }
+
+        assertThat(dataSource.getStatementCacheMisses()).isEqualTo(1);
+        assertThat(dataSource.getStatementCacheHits()).isEqualTo(2);
+    }
+
+    @Test
+    void timeout() throws SQLException {
+        dataSource = new PooledDataSource(URL, USERNAME, PASSWORD, 0, 1, 100);
+
+        // 최대 개수만큼 빌려간 상태에서는 timeout 후 예외가 발생한다
+        Connection con1 = dataSource.getConnection();
+        assertThatThrownBy(() -> dataSource.getConnection())
+            .isInstanceOf(SQLException.class);
+        con1.close();
+    }
+
+    @Test
+    void leakDetection() throws Exception {
+        dataSource = new PooledDataSource(URL, USERNAME, PASSWORD, 0, 1, 100);
+        dataSource.setBorrowStackSampleRate(1.0); // 빌려간 위치를 항상 저장한다
+        dataSource.setLeakDetectionThreshold(Duration.ofMillis(10));
+
+        Connection con = dataSource.getConnection();
+        Thread.sleep(20);
+        dataSource.checkConnections();
+        dataSource.checkConnections(); // 같은 커넥션은 한 번만 경고한다
+
+        assertThat(dataSource.getLeakCount()).isEqualTo(1);
+        con.close();
+    }
+
+    @Test
+    void abortLongTransaction() throws Exception {
+        dataSource = new PooledDataSource(URL, USERNAME, PASSWORD, 0, 1, 100);
+        dataSource.setMaxTransactionDuration(Duration.ofMillis(10), true);
+
+        Connection con = dataSource.getConnection();
+        con.setAutoCommit(false);
+        Thread.sleep(20);
+        dataSource.checkConnections();
+
+        // 커넥션이 끊어지고 풀에서 제거되므로 다른 쓰레드가 새 커넥션을 빌려갈 수 있다
+        assertThat(dataSource.getAbortedTransactionCount()).isEqualTo(1);
+        assertThat(dataSource.getTotalConnections()).isEqualTo(0);
+        assertThatThrownBy(() -> con.createStatement().execute("select 1"))
+            .isInstanceOf(SQLException.class);
+        con.close();
+
+        Connection next = dataSource.getConnection();
+        next.close();
+    }
+
+    @Test
+    void abortSkipsReborrowedConnection() throws Exception {
+        dataSource = new PooledDataSource(URL, USERNAME, PASSWORD, 0, 1, 100);
+        PoolEntry entry = new PoolEntry(null);
+        entry.markBorrowed(null);
+        long borrowedAt = entry.getBorrowedAt();
+
+        // 오래 걸린 대여를 확인한 뒤, 제거하기 전에 반납되고 다른 쓰레드가 다시 빌려갔다
+        entry.markReturned();
+        assertThat(entry.compareAndSet(PoolEntry.STATE_IN_USE, PoolEntry.STATE_NOT_IN_USE)).isTrue();
+        Thread.sleep(1);
+        assertThat(entry.compareAndSet(PoolEntry.STATE_NOT_IN_USE, PoolEntry.STATE_IN_USE)).isTrue();
+        entry.markBorrowed(null);
+
+        // 새로 빌려간 쓰레드의 커넥션은 끊지 않는다
+        assertThat(entry.markRemovedIfBorrowedAt(borrowedAt)).isFalse();
+        assertThat(entry.getState()).isEqualTo(PoolEntry.STATE_IN_USE);
+        assertThat(entry.markRemovedIfBorrowedAt(entry.getBorrowedAt())).isTrue();
+    }
+}
@@ -0,0 +1,106 @@
+package hello.jdbc.connection;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.repository.MemberRepositoryV5;
+
+/**
+ * primary, replica 역할을 하는 두 개의 메모리 H2를 사용한다. 복제는 하지 않으므로 어느 DB에서 읽었는지 값으로 구분한다
+ */
+class ReadWriteRoutingDataSourceTest {
+
+    DriverManagerDataSource primary = new DriverManagerDataSource("jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1", "sa", "");
+    DriverManagerDataSource replica = new DriverManagerDataSource("jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1", "sa", "");
+
+    ReadWriteRoutingDataSource dataSource;
+    MemberRepositoryV5 repository;
+
+    @BeforeEach
+    void beforeEach() {
+        for (DriverManagerDataSource db : List.of(primary, replica)) {
+            JdbcTemplate template = new JdbcTemplate(db);
+            template.execute("create table if not exists member (member_id varchar(10) primary key, money integer not null)");
+            template.update("delete from member");
+        }
+        new JdbcTemplate(replica).update("insert into member(member_id, money) values ('memberA', 1)"); // replica 값
+
+        dataSource = new ReadWriteRoutingDataSource(primary, List.of(replica));
+        repository = new MemberRepositoryV5(dataSource);
+    }
+
+    @AfterEach
+    void afterEach() {
+        dataSource.clearRequestState();
+    }
+
+    @Test
+    void readFromReplica() {
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(1);
+        assertThat(dataSource.getReplicaCount()).isEqualTo(1);
+    }
+
+    @Test
+    void readYourWrites() {
+        repository.save(new Member("memberA", 10000)); // primary에 저장
+
+        // 같은 요청에서 쓴 뒤에는 primary에서 읽는다
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(10000);
+
+        // 요청이 끝나면 다시 replica에서 읽는다
+        dataSource.clearRequestState();
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(1);
+    }
+
+    @Test
+    void readYourWritesExpires() throws Exception {
+        dataSource.setReadYourWritesWindow(Duration.ofMillis(50));
+        repository.save(new Member("memberA", 10000));
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(10000);
+
+        // clearRequestState()를 호출하지 않아도 시간이 지나면 replica에서 읽는다
+        Thread.sleep(100);
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(1);
+    }
+
+    @Test
+    void answerBeforeStatementWithoutPrimary() throws SQLException {
+        repository.findById("memberA"); // replica 커넥션에서 기본값을 읽어 둔다
+        long primaryCount = dataSource.getPrimaryCount();
+
+        try (Connection con = dataSource.getConnection()) {
+            assertThat(con.getTransactionIsolation()).isEqualTo(Connection.TRANSACTION_READ_COMMITTED);
+            con.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            assertThat(con.getTransactionIsolation()).isEqualTo(Connection.TRANSACTION_SERIALIZABLE);
+            assertThat(con.getSchema()).isEqualTo("PUBLIC");
+        }
+        assertThat(dataSource.getPrimaryCount()).isEqualTo(primaryCount);
+    }
+
+    @Test
+    void routeByTransaction() {
+        new JdbcTemplate(primary).update("insert into member(member_id, money) values ('memberA', 10000)");
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+
+        TransactionTemplate readOnlyTx = new TransactionTemplate(transactionManager);
+        readOnlyTx.setReadOnly(true);
+        assertThat(readOnlyTx.execute(status -> repository.findById("memberA").getMoney())).isEqualTo(1);
+
+        // 읽기-쓰기 트랜잭션은 조회만 해도 primary를 사용한다
+        TransactionTemplate readWriteTx = new TransactionTemplate(transactionManager);
+        assertThat(readWriteTx.execute(status -> repository.findById("memberA").getMoney())).isEqualTo(10000);
+    }
+}
@@ -0,0 +1,87 @@
+package hello.jdbc.connection;
+
+import static hello.jdbc.connection.ConnectionConst.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.sql.Types;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.repository.MemberRepositoryV5;
+
+class SlowQueryLoggingDataSourceTest {
+
+    SlowQueryLoggingDataSource dataSource;
+    MemberRepositoryV5 repository;
+
+    @BeforeEach
+    void beforeEach() {
+        // threshold 0: 모든 쿼리를 느린 쿼리로 기록한다
+        dataSource = new SlowQueryLoggingDataSource(new DriverManagerDataSource(URL, USERNAME, PASSWORD), Duration.ZERO);
+        dataSource.setRedactBindValues(true);
+        dataSource.setExplainExecutor(Runnable::run); // 결과를 바로 확인하기 위해 호출한 쓰레드에서 실행한다
+        repository = new MemberRepositoryV5(dataSource);
+    }
+
+    @AfterEach
+    void afterEach() {
+        repository.deleteAll(List.of("memberA"));
+    }
+
+    @Test
+    void explainSlowQuery() {
+        repository.save(new Member("memberA", 10000));
+        repository.findById("memberA");
+
+        assertThat(dataSource.getSlowQueryCount()).isEqualTo(dataSource.getStatementCount()).isGreaterThanOrEqualTo(2);
+        // 기본 키로 조회하므로 전체 스캔이 아니다
+        assertThat(dataSource.getPlan("select * from member where member_id = ?"))
+            .isNotNull()
+            .doesNotContain("tableScan");
+    }
+
+    @Test
+    void detectTableScan() {
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        template.queryForList("select * from member where money = ?", 10000);
+
+        assertThat(dataSource.getPlan("select * from member where money = ?")).contains("tableScan");
+    }
+
+    @Test
+    void skipExplainOnFailure() {
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        template.update("insert into member(member_id, money) values (?, ?)", "memberA", 10000);
+
+        // 실패한 실행은 느린 쿼리로 기록하지만 EXPLAIN 하지 않는다
+        assertThatThrownBy(() -> template.update("insert into member(member_id, money) values (?, ?)", "memberA", 0))
+            .isInstanceOf(DuplicateKeyException.class);
+        assertThatThrownBy(() -> template.queryForList("select * from member where money = ? and 1 / 0 = 1", 0))
+            .isInstanceOf(DataAccessException.class);
+        assertThat(dataSource.getPlan("select * from member where money = ? and 1 / 0 = 1")).isNull();
+    }
+
+    @Test
+    void setNullBindsNull() {
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+
+        // setNull(1, Types.INTEGER)는 타입 코드(4)가 아니라 null로 기록되어 EXPLAIN도 null로 실행된다
+        template.queryForList("select * from member where money = ?", new Object[] {null}, new int[] {Types.INTEGER});
+        assertThat(dataSource.getPlan("select * from member where money = ?")).contains("tableScan");
+    }
+
+    @Test
+    void shapeOf() {
+        assertThat(SlowQueryLoggingDataSource.shapeOf("select * from member where member_id = 'memberA' and money > 100"))
+            .isEqualTo("select * from member where member_id = ? and money > ?");
+    }
+}
@@ -0,0 +1,118 @@
+package hello.jdbc.exception.translator;
+
+import static hello.jdbc.connection.ConnectionConst.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.repository.MemberRepositoryV4_2;
+import hello.jdbc.repository.ex.ErrorCodeExceptionTranslator;
+import hello.jdbc.repository.ex.ExceptionTranslatorRegistry;
+import hello.jdbc.repository.ex.MyDbException;
+import hello.jdbc.repository.ex.MyDuplicateKeyException;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+class ErrorCodeExceptionTranslatorTest {
+
+    // DB 종류를 직접 알려주면 커넥션 없이 에러 코드 표를 만든다
+    DriverManagerDataSource dataSource = new DriverManagerDataSource(URL, USERNAME, PASSWORD);
+    ErrorCodeExceptionTranslator translator = ExceptionTranslatorRegistry.register(dataSource, "H2");
+
+    @Test
+    void translate() {
+        DataAccessException duplicate = translator.translate("save", "insert ...",
+            new SQLException("duplicate", "23505", 23505));
+        assertThat(duplicate).isInstanceOf(DuplicateKeyException.class);
+
+        DataAccessException badSql = translator.translate("select", "select bad grammer",
+            new SQLException("bad grammar", "42S22", 42122));
+        assertThat(badSql).isInstanceOf(BadSqlGrammarException.class);
+
+        // 같은 DataSource는 같은 전환기를 공유한다
+        assertThat(ExceptionTranslatorRegistry.getTranslator(dataSource)).isSameAs(translator);
+    }
+
+    @Test
+    void batchUpdateException() {
+        // batch 실패는 getNextException()의 에러 코드로 전환한다
+        BatchUpdateException batchEx = new BatchUpdateException("batch failed", new int[] {1});
+        batchEx.setNextException(new SQLException("duplicate", "23505", 23505));
+
+        assertThat(translator.translate("saveAll", "insert ...", batchEx)).isInstanceOf(DuplicateKeyException.class);
+    }
+
+    @Test
+    void customTranslation() {
+        ErrorCodeExceptionTranslator custom = translator
+            .withCustomTranslation(MyDuplicateKeyException::new, 23001, 23505)
+            .withCustomTranslation(MyDbException::new, 42122);
+
+        assertThat(custom.translateToRuntime("save", null, new SQLException("duplicate", "23505", 23505)))
+            .isInstanceOf(MyDuplicateKeyException.class);
+        assertThat(custom.translateToRuntime("select", null, new SQLException("bad grammar", "42S22", 42122)))
+            .isExactlyInstanceOf(MyDbException.class);
+
+        // 커스텀 전환이 없는 에러 코드는 스프링 예외로 전환한다
+        assertThat(custom.translateToRuntime("select", null, new SQLException("bad grammar", "42S02", 42102)))
+            .isInstanceOf(BadSqlGrammarException.class);
+    }
+
+    @Test
+    void stacklessExpected() {
+        ErrorCodeExceptionTranslator custom = translator.withCustomTranslation(MyDuplicateKeyException::expected, 23505);
+        SQLException cause = new SQLException("duplicate", "23505", 23505);
+
+        // 예상된 키 중복은 스택 트레이스 없이 만든다. 원인 예외와 에러 코드는 남는다
+        MyDbException expected = (MyDbException) custom.translateToRuntime("save", null, cause);
+        assertThat(expected.getStackTrace()).isEmpty();
+        assertThat(expected.getCause()).isSameAs(cause);
+        assertThat(expected.getErrorCode()).isEqualTo(23505);
+
+        // 일반 생성자는 그대로 스택 트레이스를 만든다
+        assertThat(new MyDuplicateKeyException(cause).getStackTrace()).isNotEmpty();
+    }
+
+    @Test
+    void unreachableDataSourceIsNotCached() {
+        DriverManagerDataSource unreachable = new DriverManagerDataSource("jdbc:none:unreachable", "sa", "");
+
+        // DB 종류를 확인하지 못하면 빈 에러 코드 표를 저장하지 않고 실패한다
+        assertThatThrownBy(() -> ExceptionTranslatorRegistry.getTranslator(unreachable))
+            .isInstanceOf(DataAccessResourceFailureException.class);
+
+        // DB가 살아나면 다시 확인해서 에러 코드로 전환한다
+        unreachable.setUrl("jdbc:h2:mem:translator");
+        assertThat(ExceptionTranslatorRegistry.getTranslator(unreachable)
+            .translate("save", null, new SQLException("duplicate", "23505", 23505)))
+            .isInstanceOf(DuplicateKeyException.class);
+    }
+
+    @Test
+    void repositoryUsesCustomTranslation() {
+        DriverManagerDataSource memory = new DriverManagerDataSource("jdbc:h2:mem:translator_custom;DB_CLOSE_DELAY=-1",
+            "sa", "");
+        ExceptionTranslatorRegistry.register(memory, ExceptionTranslatorRegistry.register(memory, "H2")
+            .withCustomTranslation(MyDuplicateKeyException::new, 23505));
+        new JdbcTemplate(memory).execute(
+            "create table if not exists member (member_id varchar(10) primary key, money integer not null)");
+
+        // 리포지토리를 만들기 전에 등록한 커스텀 전환을 사용한다
+        MemberRepositoryV4_2 repository = new MemberRepositoryV4_2(memory);
+        repository.save(new Member("memberA", 10000));
+        assertThatThrownBy(() -> repository.save(new Member("memberA", 0)))
+            .isInstanceOf(MyDuplicateKeyException.class);
+        assertThat(repository.insertIfAbsent(new Member("memberA", 0))).isFalse();
+        repository.delete("memberA");
+    }
+}
@@ -3,7 +3,6 @@ package hello.jdbc.exception.translator;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.Random;
 
 import javax.sql.DataSource;
 
@@ -14,6 +13,7 @@ import org.springframework.jdbc.support.JdbcUtils;
 
 import hello.jdbc.connection.ConnectionConst;
 import hello.jdbc.domain.Member;
+import hello.jdbc.repository.MemberIdGenerator;
 import hello.jdbc.repository.ex.MyDbException;
 import hello.jdbc.repository.ex.MyDuplicateKeyException;
 import lombok.RequiredArgsConstructor;
@@ -31,7 +31,7 @@ public class ExTranslatorV1Test { // 예외를 전환하는 V1 Test
     void init() {
         DriverManagerDataSource dataSource = new DriverManagerDataSource(URL, USERNAME, PASSWORD);
         repository = new Repository(dataSource);
-        service = new Service(repository);
+        service = new Service(repository, new MemberIdGenerator(dataSource, "myid"));
     }
 
     @Test
@@ -44,6 +44,7 @@ public class ExTranslatorV1Test { // 예외를 전환하는 V1 Test
     @RequiredArgsConstructor
     static class Service {
         private final Repository repository;
+        private final MemberIdGenerator idGenerator;
 
         public void create(String memberId) {
             try {
@@ -63,7 +64,7 @@ public class ExTranslatorV1Test { // 예외를 전환하는 V1 Test
         }
 
         private String generateNewId(String memberId) {
-            return memberId + new Random().nextInt(10000);
+            return idGenerator.nextId(); // 시퀀스에서 받은 번호를 사용하므로 다시 충돌하지 않는다
         }
 
     }
@@ -89,7 +90,8 @@ public class ExTranslatorV1Test { // 예외를 전환하는 V1 Test
                 // h2 DB
                 if (e.getErrorCode() == 23505) {
                     // 키 중복 예외 발생 시, 예외를 변경한다
-                    throw new MyDuplicateKeyException(e);
+                    // 서비스에서 잡아서 복구하는 예상된 예외이므로 스택 트레이스를 만들지 않는다
+                    throw MyDuplicateKeyException.expected(e);
                 }
                 throw new MyDbException(e); //  키 중복 이외의 모든 예외는 MyDbException으로 전환하여 던진다
 
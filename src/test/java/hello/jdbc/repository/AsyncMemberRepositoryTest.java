@@ -0,0 +1,95 @@
+package hello.jdbc.repository;
+
+import static hello.jdbc.connection.ConnectionConst.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+
+class AsyncMemberRepositoryTest {
+
+    public static final String MEMBER_A = "memberA";
+    public static final String MEMBER_B = "memberB";
+
+    HikariDataSource dataSource;
+    MemberRepositoryV5 memberRepository;
+    DataSourceTransactionManager transactionManager;
+    AsyncMemberRepository asyncRepository;
+
+    @BeforeEach
+    void beforeEach() {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(URL);
+        dataSource.setUsername(USERNAME);
+        dataSource.setPassword(PASSWORD);
+        dataSource.setMaximumPoolSize(4);
+
+        memberRepository = new MemberRepositoryV5(dataSource);
+        transactionManager = new DataSourceTransactionManager(dataSource);
+        asyncRepository = AsyncMemberRepository.create(memberRepository, transactionManager, 4);
+    }
+
+    @AfterEach
+    void afterEach() {
+        memberRepository.deleteAll(List.of(MEMBER_A, MEMBER_B));
+        asyncRepository.close();
+        dataSource.close();
+    }
+
+    @Test
+    void findByIdAndTransfer() {
+        asyncRepository.save(new Member(MEMBER_A, 10000))
+            .thenCompose(saved -> asyncRepository.save(new Member(MEMBER_B, 10000)))
+            .join();
+
+        // 이체 100건을 동시에 요청한다. 각 이체는 하나의 작업 쓰레드에서 하나의 트랜잭션으로 실행된다
+        List<CompletableFuture<TransferResult>> transfers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            transfers.add(asyncRepository.transferAsync(MEMBER_A, MEMBER_B, 10));
+        }
+        CompletableFuture.allOf(transfers.toArray(new CompletableFuture[0])).join();
+
+        assertThat(asyncRepository.findById(MEMBER_A).join().getMoney()).isEqualTo(9000);
+        assertThat(asyncRepository.findById(MEMBER_B).join().getMoney()).isEqualTo(11000);
+        assertThat(transfers).allSatisfy(transfer -> assertThat(transfer.join()).isEqualTo(TransferResult.SUCCESS));
+
+        // 실패는 예외 대신 결과로 돌려주고, 잔액은 바뀌지 않는다
+        assertThat(asyncRepository.transferAsync(MEMBER_A, MEMBER_B, 100000).join())
+            .isEqualTo(TransferResult.INSUFFICIENT_FUNDS);
+        assertThat(asyncRepository.transferAsync(MEMBER_A, "none", 10).join()).isEqualTo(TransferResult.UNKNOWN_MEMBER);
+        assertThat(asyncRepository.findById(MEMBER_A).join().getMoney()).isEqualTo(9000);
+    }
+
+    @Test
+    void closeKeepsCallerExecutor() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        new AsyncMemberRepository(memberRepository, transactionManager, executor, 4).close();
+
+        // 생성자로 받은 executor는 종료하지 않는다
+        assertThat(executor.isShutdown()).isFalse();
+        executor.shutdown();
+    }
+
+    @Test
+    void rejectInsideTransaction() {
+        TransactionTemplate txTemplate = new TransactionTemplate(transactionManager);
+
+        // 작업 쓰레드는 호출한 쪽의 트랜잭션에 참여할 수 없다
+        assertThatThrownBy(() -> txTemplate.executeWithoutResult(status -> asyncRepository.findById(MEMBER_A)))
+            .isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,225 @@
+package hello.jdbc.repository;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+
+class CachingMemberRepositoryTest {
+
+    CountingRepository target;
+    CachingMemberRepository repository;
+
+    @BeforeEach
+    void beforeEach() {
+        target = new CountingRepository();
+        target.save(new Member("memberA", 10000));
+        target.save(new Member("memberB", 20000));
+        target.save(new Member("memberC", 30000));
+        repository = new CachingMemberRepository(target, 2);
+    }
+
+    @AfterEach
+    void afterEach() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clear();
+        }
+    }
+
+    @Test
+    void hitAndEvict() {
+        repository.findById("memberA");
+        repository.findById("memberA");
+        assertThat(target.reads).isEqualTo(1);
+        assertThat(repository.getHitRate()).isEqualTo(0.5);
+
+        // 최대 2건이므로 가장 오래 사용하지 않은 memberA가 지워진다
+        repository.findByIds(List.of("memberB", "memberC"));
+        repository.findById("memberA");
+        assertThat(repository.getEvictionCount()).isEqualTo(2);
+        assertThat(repository.size()).isEqualTo(2);
+    }
+
+    @Test
+    void invalidateOnWrite() {
+        repository.findById("memberA");
+        repository.update("memberA", 5000);
+
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(5000);
+        assertThat(target.reads).isEqualTo(2);
+    }
+
+    @Test
+    void invalidateAfterCompletion() {
+        repository.findById("memberA");
+
+        // 트랜잭션 시작
+        TransactionSynchronizationManager.initSynchronization();
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        repository.update("memberA", 5000);
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(5000); // 트랜잭션 안에서는 캐시를 거치지 않는다
+
+        // 커밋 전에 다른 쓰레드가 이전 값을 넣은 상황
+        TransactionSynchronizationManager.setActualTransactionActive(false);
+        target.store.put("memberA", new Member("memberA", 10000));
+        repository.findById("memberA");
+        target.store.put("memberA", new Member("memberA", 5000));
+
+        // 커밋 후 한 번 더 지운다
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        synchronizations.forEach(s -> s.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+        TransactionSynchronizationManager.clear();
+
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(5000);
+    }
+
+    @Test
+    void notFound() {
+        assertThatThrownBy(() -> repository.findById("unknown"))
+            .isInstanceOf(NoSuchElementException.class);
+        assertThat(repository.size()).isEqualTo(0);
+    }
+
+    @Test
+    void concurrentHits() throws Exception {
+        repository.findById("memberA");
+        repository.findById("memberB");
+
+        // 같은 회원을 여러 쓰레드가 동시에 조회해도 모두 캐시에서 돌려준다
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 50000; i++) {
+                    assertThat(repository.findById(i % 2 == 0 ? "memberA" : "memberB").getMoney()).isPositive();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertThat(target.reads).isEqualTo(2);
+        assertThat(repository.getHitCount()).isEqualTo(8 * 50000);
+    }
+
+    @Test
+    void segmentedEviction() {
+        CachingMemberRepository large = new CachingMemberRepository(target, 1024);
+        for (int i = 0; i < 5000; i++) {
+            target.save(new Member("m" + i, i));
+            large.findById("m" + i);
+        }
+
+        assertThat(large.size()).isEqualTo(1024);
+        assertThat(large.getEvictionCount()).isEqualTo(5000 - 1024);
+    }
+
+    /**
+     * 조회 횟수를 세는 메모리 리포지토리
+     */
+    static class CountingRepository implements MemberRepository {
+
+        final Map<String, Member> store = new HashMap<>();
+        int reads;
+
+        @Override
+        public Member save(Member member) {
+            store.put(member.getMemberId(), member);
+            return member;
+        }
+
+        @Override
+        public Member findById(String memberId) {
+            reads++;
+            Member member = store.get(memberId);
+            if (member == null) {
+                throw new NoSuchElementException("member not found memberId=" + memberId);
+            }
+            return new Member(memberId, member.getMoney());
+        }
+
+        @Override
+        public Map<String, Member> findByIdsForUpdate(Collection<String> memberIds) {
+            Map<String, Member> result = new TreeMap<>();
+            memberIds.stream().filter(store::containsKey).forEach(memberId -> result.put(memberId, store.get(memberId)));
+            return result;
+        }
+
+        @Override
+        public Stream<Member> streamAll(int fetchSize) {
+            return store.values().stream();
+        }
+
+        @Override
+        public TransferResult transfer(String fromId, String toId, int money) {
+            if (!store.containsKey(fromId) || !store.containsKey(toId)) {
+                return TransferResult.UNKNOWN_MEMBER;
+            }
+            if (withdraw(fromId, money) == 0) {
+                return TransferResult.INSUFFICIENT_FUNDS;
+            }
+            addMoney(toId, money);
+            return TransferResult.SUCCESS;
+        }
+
+        @Override
+        public int addMoney(String memberId, int delta) {
+            Member member = store.get(memberId);
+            if (member == null) {
+                return 0;
+            }
+            update(memberId, member.getMoney() + delta);
+            return 1;
+        }
+
+        @Override
+        public int withdraw(String memberId, int amount) {
+            Member member = store.get(memberId);
+            if (member == null || member.getMoney() < amount) {
+                return 0;
+            }
+            update(memberId, member.getMoney() - amount);
+            return 1;
+        }
+
+        @Override
+        public void update(String memberId, int money) {
+            store.put(memberId, new Member(memberId, money));
+        }
+
+        @Override
+        public void delete(String memberId) {
+            store.remove(memberId);
+        }
+
+        @Override
+        public boolean deleteIfUnchanged(Member expected) {
+            Member member = store.get(expected.getMemberId());
+            if (member == null || member.getMoney() != expected.getMoney()) {
+                return false;
+            }
+            delete(expected.getMemberId());
+            return true;
+        }
+    }
+}
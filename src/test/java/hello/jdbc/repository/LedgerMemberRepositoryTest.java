@@ -0,0 +1,112 @@
+package hello.jdbc.repository;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+
+class LedgerMemberRepositoryTest {
+
+    // 테이블 크기 변경과 stripe 경합이 자주 일어나도록 작게 만든다
+    LedgerMemberRepository repository = new LedgerMemberRepository(4, 4);
+
+    @Test
+    void crud() {
+        repository.save(new Member("memberA", 10000));
+        assertThatThrownBy(() -> repository.save(new Member("memberA", 0))).isInstanceOf(DuplicateKeyException.class);
+
+        repository.update("memberA", 20000);
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(20000);
+        assertThat(repository.addMoney("memberA", 500)).isEqualTo(1);
+        assertThat(repository.withdraw("memberA", 30000)).isZero();
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(20500);
+
+        repository.delete("memberA");
+        assertThatThrownBy(() -> repository.findById("memberA")).isInstanceOf(NoSuchElementException.class);
+        assertThat(repository.addMoney("memberA", 500)).isZero();
+        assertThat(repository.insertIfAbsent(new Member("memberA", 1))).isTrue();
+        assertThat(repository.upsert(new Member("memberA", 2))).isFalse();
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(2);
+    }
+
+    @Test
+    void resizeAfterDeletes() {
+        for (int i = 0; i < 1000; i++) {
+            repository.save(new Member("m" + i, i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            repository.delete("m" + i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            repository.save(new Member("m" + i, i));
+        }
+
+        assertThat(repository.getSize()).isEqualTo(1000);
+        assertThat(repository.findByIds(List.of("m0", "m1", "m999", "none"))).containsOnlyKeys("m0", "m1", "m999");
+        try (Stream<Member> members = repository.streamAll(100)) {
+            assertThat(members.mapToLong(Member::getMoney).sum()).isEqualTo(999 * 1000 / 2);
+        }
+    }
+
+    @Test
+    void transfer() {
+        repository.save(new Member("memberA", 10000));
+        repository.save(new Member("memberB", 10000));
+
+        assertThat(repository.transfer("memberA", "memberB", 2000)).isEqualTo(TransferResult.SUCCESS);
+        assertThat(repository.transfer("memberA", "memberB", 20000)).isEqualTo(TransferResult.INSUFFICIENT_FUNDS);
+        assertThat(repository.transfer("memberA", "none", 1000)).isEqualTo(TransferResult.UNKNOWN_MEMBER);
+        assertThatThrownBy(() -> repository.transfer("memberA", "memberA", 1000))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(8000);
+        assertThat(repository.findById("memberB").getMoney()).isEqualTo(12000);
+        assertThat(repository.findByIdsForUpdate(List.of("memberB", "none", "memberA")).keySet())
+            .containsExactly("memberA", "memberB");
+    }
+
+    @Test
+    void concurrentTransfer() throws Exception {
+        int accounts = 100;
+        for (int i = 0; i < accounts; i++) {
+            repository.save(new Member("m" + i, 1000));
+        }
+
+        // 양방향 이체와 회원 추가(테이블 크기 변경)를 동시에 실행해도 데드락이 없고 합계가 유지된다
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 20000; i++) {
+                    int from = random.nextInt(accounts);
+                    int to = (from + 1 + random.nextInt(accounts - 1)) % accounts;
+                    repository.transfer("m" + from, "m" + to, random.nextInt(1, 100));
+                }
+            }));
+        }
+        for (int i = 0; i < 2000; i++) {
+            repository.save(new Member("x" + i, 0));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        try (Stream<Member> members = repository.streamAll(100)) {
+            assertThat(members.mapToLong(Member::getMoney).sum()).isEqualTo(accounts * 1000L);
+        }
+    }
+}
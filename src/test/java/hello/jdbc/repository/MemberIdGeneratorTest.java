@@ -0,0 +1,58 @@
+package hello.jdbc.repository;
+
+import static hello.jdbc.connection.ConnectionConst.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+class MemberIdGeneratorTest {
+
+    DriverManagerDataSource dataSource = new DriverManagerDataSource(URL, USERNAME, PASSWORD);
+
+    @Test
+    void nextIdWithPrefix() {
+        MemberIdGenerator generator = new MemberIdGenerator(dataSource, "m");
+        String first = generator.nextId();
+        String second = generator.nextId();
+
+        assertThat(first).startsWith("m").isNotEqualTo(second);
+        assertThat(Long.parseLong(second.substring(1))).isEqualTo(Long.parseLong(first.substring(1)) + 1);
+    }
+
+    @Test
+    void uniqueAcrossThreads() throws Exception {
+        MemberIdGenerator generator = new MemberIdGenerator(dataSource, "t", "member_seq_test", 2, 64);
+        Set<Long> values = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 500; j++) {
+                        assertThat(values.add(generator.nextValue())).isTrue();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(values).hasSize(4000);
+        // 묶음을 빠르게 다 쓰므로 묶음 크기가 늘어나서 DB 조회 횟수가 줄어든다
+        // 얼마나 늘어나는지는 refill 사이의 시간에 달려 있으므로 늘어났는지와 범위만 확인한다
+        assertThat(generator.getBlockSize()).isGreaterThan(2).isLessThanOrEqualTo(64);
+        assertThat(generator.getRefillCount()).isPositive().isLessThan(4000 / 2);
+    }
+}
@@ -0,0 +1,27 @@
+package hello.jdbc.repository;
+
+import static org.assertj.core.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import hello.jdbc.domain.Member;
+
+/**
+ * 인터페이스 기본 구현 - findByIds, insertIfAbsent, upsert를 구현하지 않은 리포지토리로 확인한다
+ */
+class MemberRepositoryDefaultsTest {
+
+    CachingMemberRepositoryTest.CountingRepository repository = new CachingMemberRepositoryTest.CountingRepository();
+
+    @Test
+    void insertIfAbsentAndUpsert() {
+        assertThat(repository.insertIfAbsent(new Member("memberA", 10000))).isTrue();
+        assertThat(repository.insertIfAbsent(new Member("memberA", 0))).isFalse();
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(10000);
+
+        assertThat(repository.upsert(new Member("memberA", 5000))).isFalse();
+        assertThat(repository.upsert(new Member("memberB", 3000))).isTrue();
+        assertThat(repository.findById("memberA").getMoney()).isEqualTo(5000);
+        assertThat(repository.findById("memberB").getMoney()).isEqualTo(3000);
+    }
+}
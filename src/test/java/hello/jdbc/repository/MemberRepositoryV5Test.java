@@ -0,0 +1,141 @@
+package hello.jdbc.repository;
+
+import static hello.jdbc.connection.ConnectionConst.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.EmptyResultDataAccessException;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import hello.jdbc.domain.Member;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+class MemberRepositoryV5Test {
+
+    public static final String MEMBER_A = "memberA";
+    public static final String MEMBER_B = "memberB";
+    public static final String MEMBER_C = "memberC";
+
+    MemberRepositoryV5 repository;
+
+    @BeforeEach
+    void beforeEach() {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(URL);
+        dataSource.setUsername(USERNAME);
+        dataSource.setPassword(PASSWORD);
+
+        repository = new MemberRepositoryV5(dataSource, 2); // batch 묶음이 여러 개가 되도록 작게 설정한다
+    }
+
+    @AfterEach
+    void afterEach() {
+        repository.deleteAll(List.of(MEMBER_A, MEMBER_B, MEMBER_C));
+    }
+
+    @Test
+    void batch() {
+        // saveAll
+        repository.saveAll(List.of(new Member(MEMBER_C, 30000), new Member(MEMBER_A, 10000), new Member(MEMBER_B, 20000)));
+        assertThat(repository.findById(MEMBER_B).getMoney()).isEqualTo(20000);
+
+        // updateAll
+        repository.updateAll(List.of(new Member(MEMBER_A, 11000), new Member(MEMBER_C, 33000)));
+        assertThat(repository.findById(MEMBER_A).getMoney()).isEqualTo(11000);
+        assertThat(repository.findById(MEMBER_C).getMoney()).isEqualTo(33000);
+
+        // deleteAll
+        repository.deleteAll(List.of(MEMBER_A, MEMBER_B));
+        assertThatThrownBy(() -> repository.findById(MEMBER_A))
+            .isInstanceOf(EmptyResultDataAccessException.class);
+    }
+
+    @Test
+    void findByIds() {
+        repository.saveAll(List.of(new Member(MEMBER_A, 10000), new Member(MEMBER_B, 20000)));
+
+        // 한 번의 쿼리로 조회한다. 없는 회원은 결과에 들어가지 않는다
+        Map<String, Member> members = repository.findByIds(List.of(MEMBER_A, MEMBER_B, MEMBER_C));
+        assertThat(members).containsOnlyKeys(MEMBER_A, MEMBER_B);
+        assertThat(members.get(MEMBER_B).getMoney()).isEqualTo(20000);
+    }
+
+    @Test
+    void streamAll() {
+        repository.saveAll(List.of(new Member(MEMBER_A, 10000), new Member(MEMBER_B, 20000)));
+
+        // Stream을 close 해야 커넥션이 반환되므로 try-with-resources를 사용한다
+        try (Stream<Member> members = repository.streamAll(1)) {
+            List<String> memberIds = members.map(Member::getMemberId)
+                .filter(memberId -> memberId.equals(MEMBER_A) || memberId.equals(MEMBER_B))
+                .collect(Collectors.toList());
+            assertThat(memberIds).containsExactly(MEMBER_A, MEMBER_B);
+        }
+    }
+
+    @Test
+    void batchDuplicateKey() {
+        repository.save(new Member(MEMBER_A, 10000));
+
+        // batch 중 한 건이라도 키가 중복되면 스프링 예외로 전환된다
+        assertThatThrownBy(() -> repository.saveAll(List.of(new Member(MEMBER_B, 0), new Member(MEMBER_A, 0))))
+            .isInstanceOf(DuplicateKeyException.class);
+    }
+
+    @Test
+    void addMoneyAndWithdraw() {
+        repository.save(new Member(MEMBER_A, 10000));
+
+        assertThat(repository.addMoney(MEMBER_A, 500)).isEqualTo(1);
+        assertThat(repository.withdraw(MEMBER_A, 3000)).isEqualTo(1);
+        assertThat(repository.findById(MEMBER_A).getMoney()).isEqualTo(7500);
+
+        // 잔액이 부족하거나 회원이 없으면 변경되지 않는다
+        assertThat(repository.withdraw(MEMBER_A, 8000)).isEqualTo(0);
+        assertThat(repository.addMoney(MEMBER_B, 500)).isEqualTo(0);
+        assertThat(repository.findById(MEMBER_A).getMoney()).isEqualTo(7500);
+    }
+
+    @Test
+    void upsertAndInsertIfAbsent() {
+        // 없으면 저장하고 true, 이미 있으면 바꾸지 않고 false
+        assertThat(repository.insertIfAbsent(new Member(MEMBER_A, 10000))).isTrue();
+        assertThat(repository.insertIfAbsent(new Member(MEMBER_A, 99999))).isFalse();
+        assertThat(repository.findById(MEMBER_A).getMoney()).isEqualTo(10000);
+
+        // 있으면 잔액을 바꾸고 false, 없으면 저장하고 true
+        assertThat(repository.upsert(new Member(MEMBER_A, 11000))).isFalse();
+        assertThat(repository.upsert(new Member(MEMBER_B, 20000))).isTrue();
+        assertThat(repository.findById(MEMBER_A).getMoney()).isEqualTo(11000);
+        assertThat(repository.findById(MEMBER_B).getMoney()).isEqualTo(20000);
+    }
+
+    @Test
+    void upsertAll() {
+        repository.save(new Member(MEMBER_B, 20000));
+
+        // batch 묶음(2건)을 넘어가도 새로 저장한 건수만 돌려준다
+        int created = repository.upsertAll(
+            List.of(new Member(MEMBER_C, 30000), new Member(MEMBER_B, 22000), new Member(MEMBER_A, 10000)));
+        assertThat(created).isEqualTo(2);
+        assertThat(repository.findById(MEMBER_B).getMoney()).isEqualTo(22000);
+
+        assertThat(repository.insertIfAbsentAll(List.of(new Member(MEMBER_A, 0), new Member(MEMBER_C, 0)))).isEqualTo(0);
+        assertThat(repository.findById(MEMBER_C).getMoney()).isEqualTo(30000);
+
+        // 같은 회원이 두 번 있으면 한 번만 센다. 마지막 값이 남는다
+        repository.delete(MEMBER_C);
+        assertThat(repository.upsertAll(List.of(new Member(MEMBER_C, 1), new Member(MEMBER_C, 2)))).isEqualTo(1);
+        assertThat(repository.findById(MEMBER_C).getMoney()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,52 @@
+package hello.jdbc.repository;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import hello.jdbc.domain.Member;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class MetricsMemberRepositoryTest {
+
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    MetricsMemberRepository repository =
+        new MetricsMemberRepository(new CachingMemberRepositoryTest.CountingRepository(), registry);
+
+    @Test
+    void recordCallsPerMethod() {
+        repository.save(new Member("memberA", 10000));
+        repository.findById("memberA");
+        repository.findById("memberA");
+        repository.update("memberA", 20000);
+
+        assertThat(timer("save").count()).isEqualTo(1);
+        assertThat(timer("findById").count()).isEqualTo(2);
+        assertThat(timer("update").count()).isEqualTo(1);
+        assertThat(timer("findById").totalTime(TimeUnit.NANOSECONDS)).isPositive();
+    }
+
+    @Test
+    void recordErrors() {
+        assertThatThrownBy(() -> repository.findById("none"))
+            .isInstanceOf(NoSuchElementException.class);
+
+        // 실패한 호출도 시간은 기록하고, 예외 수는 따로 센다
+        assertThat(timer("findById").count()).isEqualTo(1);
+        assertThat(registry.get(MetricsMemberRepository.ERROR_COUNTER_NAME)
+            .tag("method", "findById")
+            .tag("exception", "NoSuchElementException")
+            .counter().count()).isEqualTo(1);
+    }
+
+    private Timer timer(String method) {
+        return registry.get(MetricsMemberRepository.TIMER_NAME)
+            .tag("repository", "CountingRepository")
+            .tag("method", method)
+            .timer();
+    }
+}
@@ -0,0 +1,173 @@
+package hello.jdbc.repository;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import hello.jdbc.domain.Member;
+
+/**
+ * 샤드마다 별도의 메모리 H2를 사용한다
+ */
+class ShardedMemberRepositoryTest {
+
+    Map<String, DataSource> dataSources = new LinkedHashMap<>();
+    ShardedMemberRepository repository;
+
+    @BeforeEach
+    void beforeEach() {
+        for (String name : List.of("shard0", "shard1", "shard2")) {
+            DriverManagerDataSource dataSource =
+                new DriverManagerDataSource("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "sa", "");
+            JdbcTemplate template = new JdbcTemplate(dataSource);
+            template.execute("create table if not exists member (member_id varchar(10) primary key, money integer not null)");
+            template.update("delete from member");
+            dataSources.put(name, dataSource);
+        }
+        repository = new ShardedMemberRepository(
+            Map.of("shard0", dataSources.get("shard0"), "shard1", dataSources.get("shard1")), MemberRepositoryV5::new);
+    }
+
+    @AfterEach
+    void afterEach() {
+        repository.close();
+    }
+
+    @Test
+    void routeAndFanOut() {
+        List<Member> members = members(100);
+        repository.saveAll(members);
+
+        // 회원은 두 샤드에 나뉘어 저장되고, 여러 건 조회는 두 샤드에서 함께 가져온다
+        assertThat(count("shard0")).isPositive();
+        assertThat(count("shard1")).isPositive();
+        assertThat(count("shard0") + count("shard1")).isEqualTo(100);
+        assertThat(repository.findByIds(List.of("m1", "m50", "m99", "none"))).containsOnlyKeys("m1", "m50", "m99");
+        assertThat(repository.findById("m7").getMoney()).isEqualTo(7);
+        assertThat(repository.getShardStats().get("shard0").getCalls()).isPositive();
+    }
+
+    @Test
+    void migration() {
+        repository.saveAll(members(100));
+
+        repository.startMigration(dataSources);
+
+        // 이동 중: 아직 옮기지 않은 회원도 찾을 수 있고, 쓰기는 새 위치에서 한다
+        String movingId = movingMemberId();
+        assertThat(repository.findById(movingId).getMoney()).isEqualTo(Integer.parseInt(movingId.substring(1)));
+        repository.update(movingId, 12345);
+        assertThat(repository.findById(movingId).getMoney()).isEqualTo(12345);
+
+        int moved = repository.migrateAll(10);
+        repository.finishMigration();
+
+        // 새 샤드가 약 1/3을 가져가고, 나머지 회원은 움직이지 않는다
+        assertThat(moved + 1).isEqualTo(count("shard2"));
+        assertThat(count("shard0") + count("shard1") + count("shard2")).isEqualTo(100);
+        assertThat(repository.findByIds(List.of("m1", "m50", movingId))).hasSize(3);
+        assertThat(repository.findById(movingId).getMoney()).isEqualTo(12345);
+    }
+
+    @Test
+    void moveRetriesWhenChangedDuringMove() {
+        // 처음 옮길 때 이전 위치의 row를 지우기 직전에 다른 쓰기가 끼어든 것처럼 값을 바꾼다
+        AtomicBoolean interfered = new AtomicBoolean();
+        repository.close();
+        repository = new ShardedMemberRepository(
+            Map.of("shard0", dataSources.get("shard0"), "shard1", dataSources.get("shard1")),
+            dataSource -> new MemberRepositoryV5(dataSource) {
+                @Override
+                public boolean deleteIfUnchanged(Member expected) {
+                    if (interfered.compareAndSet(false, true)) {
+                        new JdbcTemplate(dataSource).update("update member set money = 777 where member_id = ?",
+                            expected.getMemberId());
+                    }
+                    return super.deleteIfUnchanged(expected);
+                }
+            });
+        repository.saveAll(members(100));
+        repository.startMigration(dataSources);
+
+        String movingId = movingMemberId();
+        assertThat(repository.moveIfNeeded(movingId)).isTrue();
+
+        // 끼어든 값이 사라지지 않고 새 위치로 옮겨진다
+        assertThat(interfered).isTrue();
+        assertThat(money("shard2", movingId)).isEqualTo(777);
+        assertThat(count("shard0") + count("shard1") + count("shard2")).isEqualTo(100);
+    }
+
+    @Test
+    void deleteDuringMigrationIsNotResurrected() {
+        repository.saveAll(members(100));
+        repository.startMigration(dataSources);
+
+        String movingId = movingMemberId();
+        repository.delete(movingId);
+
+        // 이동 중에 지운 회원은 다시 옮기지 않고, 새로 저장하면 다시 사용할 수 있다
+        assertThat(repository.moveIfNeeded(movingId)).isFalse();
+        repository.migrateAll(10);
+        assertThat(repository.findByIds(List.of(movingId))).isEmpty();
+        assertThat(count("shard0") + count("shard1") + count("shard2")).isEqualTo(99);
+
+        assertThat(repository.insertIfAbsent(new Member(movingId, 1))).isTrue();
+        assertThat(repository.findById(movingId).getMoney()).isEqualTo(1);
+        repository.finishMigration();
+    }
+
+    @Test
+    void crossShardTransferNotSupported() {
+        repository.saveAll(members(100));
+        String from = "m1";
+        String to = null;
+        for (int i = 2; i <= 100 && to == null; i++) {
+            if (!repository.shardNameFor("m" + i).equals(repository.shardNameFor(from))) {
+                to = "m" + i;
+            }
+        }
+        String other = to;
+
+        assertThatThrownBy(() -> repository.transfer(from, other, 1))
+            .isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    private String movingMemberId() {
+        for (int i = 1; i <= 100; i++) {
+            if (repository.shardNameFor("m" + i).equals("shard2")) {
+                return "m" + i;
+            }
+        }
+        throw new IllegalStateException("no member moves to shard2");
+    }
+
+    private List<Member> members(int count) {
+        List<Member> members = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            members.add(new Member("m" + i, i));
+        }
+        return members;
+    }
+
+    private int money(String shardName, String memberId) {
+        return new JdbcTemplate(dataSources.get(shardName))
+            .queryForObject("select money from member where member_id = ?", Integer.class, memberId);
+    }
+
+    private int count(String shardName) {
+        return new JdbcTemplate(dataSources.get(shardName)).queryForObject("select count(*) from member", Integer.class);
+    }
+}
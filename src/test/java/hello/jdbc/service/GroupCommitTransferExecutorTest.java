@@ -0,0 +1,80 @@
+package hello.jdbc.service;
+
+import static hello.jdbc.connection.ConnectionConst.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.repository.MemberRepositoryV5;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 그룹 커밋 - 여러 이체를 하나의 트랜잭션으로 커밋한다
+ */
+@Slf4j
+class GroupCommitTransferExecutorTest {
+
+    public static final String MEMBER_A = "memberA";
+    public static final String MEMBER_B = "memberB";
+    public static final String MEMBER_EX = "ex";
+
+    private MemberRepositoryV5 memberRepository;
+    private GroupCommitTransferExecutor executor;
+
+    @BeforeEach
+    void before() {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(URL);
+        dataSource.setUsername(USERNAME);
+        dataSource.setPassword(PASSWORD);
+
+        memberRepository = new MemberRepositoryV5(dataSource);
+        MemberServiceV4 memberService = new MemberServiceV4(memberRepository);
+        executor = new GroupCommitTransferExecutor(memberService, new DataSourceTransactionManager(dataSource),
+            16, Duration.ofMillis(100));
+    }
+
+    @AfterEach
+    void after() {
+        executor.close();
+        memberRepository.delete(MEMBER_A);
+        memberRepository.delete(MEMBER_B);
+        memberRepository.delete(MEMBER_EX);
+    }
+
+    @Test
+    @DisplayName("묶음 안의 한 건이 실패해도 나머지는 커밋된다")
+    void groupCommit() throws Exception {
+
+        // given
+        memberRepository.save(new Member(MEMBER_A, 10000));
+        memberRepository.save(new Member(MEMBER_B, 10000));
+        memberRepository.save(new Member(MEMBER_EX, 10000));
+
+        // when
+        CompletableFuture<Void> first = executor.submit(MEMBER_A, MEMBER_B, 1000);
+        CompletableFuture<Void> failed = executor.submit(MEMBER_A, MEMBER_EX, 1000);
+        CompletableFuture<Void> second = executor.submit(MEMBER_B, MEMBER_A, 500);
+        CompletableFuture.allOf(first, second).get();
+
+        // then
+        assertThatThrownBy(failed::get)
+            .isInstanceOf(ExecutionException.class)
+            .hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(memberRepository.findById(MEMBER_A).getMoney()).isEqualTo(9500);
+        assertThat(memberRepository.findById(MEMBER_B).getMoney()).isEqualTo(10500);
+        assertThat(memberRepository.findById(MEMBER_EX).getMoney()).isEqualTo(10000); // savepoint까지 롤백됐다
+        assertThat(executor.getFailedTransferCount()).isEqualTo(1);
+    }
+}
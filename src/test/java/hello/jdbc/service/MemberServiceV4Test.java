@@ -3,6 +3,10 @@ package hello.jdbc.service;
 import static org.assertj.core.api.Assertions.*;
 
 import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
@@ -16,6 +20,7 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.context.annotation.Bean;
 
 import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
 import hello.jdbc.repository.MemberRepository;
 import hello.jdbc.repository.MemberRepositoryV3;
 import hello.jdbc.repository.MemberRepositoryV4_1;
@@ -139,4 +144,71 @@ class MemberServiceV4Test {
         assertThat(findMemberB.getMoney()).isEqualTo(10000);
     }
 
-}
\ No newline at end of file
+    @Test
+    @DisplayName("한 번의 update로 이체")
+    void transfer() {
+
+        // given
+        memberRepository.save(new Member(MEMBER_A, 10000));
+        memberRepository.save(new Member(MEMBER_B, 10000));
+
+        // when
+        TransferResult result = memberService.transfer(MEMBER_A, MEMBER_B, 2000);
+
+        // then
+        assertThat(result).isEqualTo(TransferResult.SUCCESS);
+        assertThat(memberRepository.findById(MEMBER_A).getMoney()).isEqualTo(8000);
+        assertThat(memberRepository.findById(MEMBER_B).getMoney()).isEqualTo(12000);
+    }
+
+    @Test
+    @DisplayName("한 번의 update로 이체 - 잔액 부족, 없는 회원")
+    void transferFail() {
+
+        // given
+        memberRepository.save(new Member(MEMBER_A, 1000));
+        memberRepository.save(new Member(MEMBER_B, 10000));
+
+        // when
+        TransferResult insufficient = memberService.transfer(MEMBER_A, MEMBER_B, 2000);
+        TransferResult unknown = memberService.transfer(MEMBER_A, "unknown", 500);
+
+        // then - 아무것도 변경되지 않는다
+        assertThat(insufficient).isEqualTo(TransferResult.INSUFFICIENT_FUNDS);
+        assertThat(unknown).isEqualTo(TransferResult.UNKNOWN_MEMBER);
+        assertThat(memberRepository.findById(MEMBER_A).getMoney()).isEqualTo(1000);
+        assertThat(memberRepository.findById(MEMBER_B).getMoney()).isEqualTo(10000);
+    }
+
+    @Test
+    @DisplayName("반대 방향 이체 동시 실행")
+    void accountTransferBothDirections() throws Exception {
+
+        // given
+        memberRepository.save(new Member(MEMBER_A, 10000));
+        memberRepository.save(new Member(MEMBER_B, 10000));
+
+        // when - A->B, B->A를 동시에 실행한다. 두 row를 member_id 순서로 잠그므로 데드락이나 갱신 유실이 없어야 한다
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> aToB = executor.submit(() -> {
+                for (int i = 0; i < 20; i++) {
+                    memberService.accountTransfer(MEMBER_A, MEMBER_B, 100);
+                }
+            });
+            Future<?> bToA = executor.submit(() -> {
+                for (int i = 0; i < 20; i++) {
+                    memberService.accountTransfer(MEMBER_B, MEMBER_A, 50);
+                }
+            });
+            aToB.get(30, TimeUnit.SECONDS);
+            bToA.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // then
+        assertThat(memberRepository.findById(MEMBER_A).getMoney()).isEqualTo(9000);
+        assertThat(memberRepository.findById(MEMBER_B).getMoney()).isEqualTo(11000);
+    }
+}
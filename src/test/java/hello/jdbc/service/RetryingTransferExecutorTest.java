@@ -0,0 +1,83 @@
+package hello.jdbc.service;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class RetryingTransferExecutorTest {
+
+    @Test
+    void retryTransient() {
+        RetryingTransferExecutor executor = new RetryingTransferExecutor(null, 5,
+            Duration.ofMillis(1), Duration.ofMillis(5), 0.1, 10);
+
+        // 두 번 데드락으로 실패한 뒤 성공한다
+        AtomicInteger attempts = new AtomicInteger();
+        String result = executor.execute(() -> {
+            if (attempts.incrementAndGet() <= 2) {
+                throw new DeadlockLoserDataAccessException("deadlock", null);
+            }
+            return "ok";
+        });
+
+        assertThat(result).isEqualTo("ok");
+        assertThat(executor.getRetryCount()).isEqualTo(2);
+    }
+
+    @Test
+    void notRetryable() {
+        RetryingTransferExecutor executor = new RetryingTransferExecutor(null);
+
+        // 일시적인 오류가 아니면 다시 시도하지 않는다
+        AtomicInteger attempts = new AtomicInteger();
+        assertThatThrownBy(() -> executor.execute(() -> {
+            attempts.incrementAndGet();
+            throw new DataIntegrityViolationException("duplicate");
+        })).isInstanceOf(DataIntegrityViolationException.class);
+        assertThat(attempts.get()).isEqualTo(1);
+    }
+
+    @Test
+    void giveUpAndBudget() {
+        RetryingTransferExecutor executor = new RetryingTransferExecutor(null, 3,
+            Duration.ZERO, Duration.ZERO, 0.0, 3);
+
+        // 최대 3번 시도 후 포기한다. 재시도 2번에 토큰 2개를 쓴다
+        assertThatThrownBy(() -> executor.execute(() -> {
+            throw new DeadlockLoserDataAccessException("deadlock", null);
+        })).isInstanceOf(DeadlockLoserDataAccessException.class);
+        assertThat(executor.getGiveUpCount()).isEqualTo(1);
+
+        // 남은 토큰 1개를 쓰고 나면 예산이 없어서 바로 실패한다
+        assertThatThrownBy(() -> executor.execute(() -> {
+            throw new DeadlockLoserDataAccessException("deadlock", null);
+        })).isInstanceOf(DeadlockLoserDataAccessException.class);
+        assertThat(executor.getBudgetExhaustedCount()).isEqualTo(1);
+        assertThat(executor.getRetryCount()).isEqualTo(3);
+    }
+
+    @Test
+    void metrics() {
+        RetryingTransferExecutor executor = new RetryingTransferExecutor(null, 2,
+            Duration.ZERO, Duration.ZERO, 0.0, 5);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        executor.bindTo(registry);
+
+        assertThatThrownBy(() -> executor.execute(() -> {
+            throw new DeadlockLoserDataAccessException("deadlock", null);
+        })).isInstanceOf(DeadlockLoserDataAccessException.class);
+
+        assertThat(registry.get("member.transfer.retry.calls").functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get("member.transfer.retries").functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get("member.transfer.retry.giveups").tag("reason", "max_attempts")
+            .functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get("member.transfer.retry.budget").gauge().value()).isEqualTo(4.0);
+    }
+}
@@ -0,0 +1,186 @@
+package hello.jdbc.service;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+import hello.jdbc.repository.MemberRepositoryV5;
+import hello.jdbc.repository.ShardedMemberRepository;
+
+/**
+ * 샤드마다 별도의 메모리 H2를 사용한다
+ */
+class ShardedTransferCoordinatorTest {
+
+    Map<String, DataSource> dataSources = new LinkedHashMap<>();
+    ShardedMemberRepository memberRepository;
+    ShardedTransferCoordinator coordinator;
+
+    @BeforeEach
+    void beforeEach() {
+        for (String name : List.of("transfer0", "transfer1", "transfer2")) {
+            DriverManagerDataSource dataSource =
+                new DriverManagerDataSource("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "sa", "");
+            JdbcTemplate template = new JdbcTemplate(dataSource);
+            template.execute("create table if not exists member (member_id varchar(10) primary key, money integer not null)");
+            template.execute("drop table if exists transfer_log");
+            template.execute("drop table if exists transfer_applied");
+            template.update("delete from member");
+            dataSources.put(name, dataSource);
+        }
+        // transfer2는 샤드 이동 테스트에서 추가한다
+        Map<String, DataSource> initial = new LinkedHashMap<>(dataSources);
+        initial.remove("transfer2");
+        memberRepository = new ShardedMemberRepository(initial, MemberRepositoryV5::new);
+        coordinator = new ShardedTransferCoordinator(memberRepository, dataSources);
+        for (int i = 0; i < 20; i++) {
+            memberRepository.save(new Member("m" + i, 10000));
+        }
+    }
+
+    @AfterEach
+    void afterEach() {
+        memberRepository.close();
+    }
+
+    @Test
+    void sameShardTransfer() {
+        String fromId = "m0";
+        String toId = memberOn(memberRepository.shardNameFor(fromId), fromId);
+
+        assertThat(coordinator.accountTransfer(fromId, toId, 2000)).isEqualTo(TransferResult.SUCCESS);
+
+        assertThat(memberRepository.findById(fromId).getMoney()).isEqualTo(8000);
+        assertThat(memberRepository.findById(toId).getMoney()).isEqualTo(12000);
+        assertThat(coordinator.getSameShardCount()).isEqualTo(1);
+        assertThat(coordinator.getCrossShardCount()).isZero();
+    }
+
+    @Test
+    void crossShardTransfer() {
+        String fromId = "m0";
+        String toId = memberNotOn(memberRepository.shardNameFor(fromId));
+
+        assertThat(coordinator.accountTransfer(fromId, toId, 2000)).isEqualTo(TransferResult.SUCCESS);
+        assertThat(coordinator.accountTransfer(fromId, toId, 20000)).isEqualTo(TransferResult.INSUFFICIENT_FUNDS);
+        assertThat(coordinator.accountTransfer(fromId, "none", 1000)).isEqualTo(TransferResult.UNKNOWN_MEMBER);
+
+        assertThat(memberRepository.findById(fromId).getMoney()).isEqualTo(8000);
+        assertThat(memberRepository.findById(toId).getMoney()).isEqualTo(12000);
+        assertThat(logStatus(fromId)).containsExactly(ShardedTransferCoordinator.DONE);
+        assertThat(coordinator.getSameShardCount()).isZero();
+        assertThat(coordinator.getCrossShardCount()).isEqualTo(3);
+    }
+
+    @Test
+    void recoverPendingTransfer() {
+        String fromId = "m0";
+        String toId = memberNotOn(memberRepository.shardNameFor(fromId));
+        String deletedId = memberNotOn(memberRepository.shardNameFor(fromId), toId);
+
+        // 출금만 커밋되고 입금 전에 멈춘 이체 두 건. 하나는 받는 회원이 그 사이에 삭제됐다
+        memberRepository.update(fromId, 7000);
+        insertPending("t1", fromId, toId, 2000);
+        insertPending("t2", fromId, deletedId, 1000);
+        memberRepository.delete(deletedId);
+
+        assertThat(coordinator.recover(Duration.ofMillis(-1000))).isEqualTo(2);
+        assertThat(coordinator.recover(Duration.ofMillis(-1000))).isZero(); // 다시 실행해도 두 번 입금하지 않는다
+
+        assertThat(memberRepository.findById(toId).getMoney()).isEqualTo(12000);
+        assertThat(memberRepository.findById(fromId).getMoney()).isEqualTo(8000);
+        assertThat(logStatus(fromId)).containsExactlyInAnyOrder(ShardedTransferCoordinator.DONE,
+            ShardedTransferCoordinator.COMPENSATED);
+        assertThat(coordinator.getCompensatedCount()).isEqualTo(1);
+    }
+
+    @Test
+    void recoverAcrossMigration() {
+        Map<String, String> shardBefore = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            shardBefore.put("m" + i, memberRepository.shardNameFor("m" + i));
+        }
+        memberRepository.startMigration(dataSources);
+
+        // 받는 회원 둘은 transfer2로 옮겨질 회원이고, 보내는 회원은 옮겨지지 않는다
+        List<String> moving = shardBefore.keySet().stream()
+            .filter(memberId -> memberRepository.shardNameFor(memberId).equals("transfer2"))
+            .collect(Collectors.toList());
+        String fromId = shardBefore.keySet().stream()
+            .filter(memberId -> !moving.contains(memberId))
+            .findFirst().orElseThrow();
+        String movedId = moving.get(0);
+        String notMovedId = moving.get(1);
+
+        // 출금만 커밋되고 입금 전에 멈춘 이체 두 건. 받는 샤드는 출금할 때의 위치로 기록돼 있다
+        memberRepository.update(fromId, 7000);
+        insertPending("t1", fromId, movedId, 2000, shardBefore.get(movedId));
+        insertPending("t2", fromId, notMovedId, 1000, shardBefore.get(notMovedId));
+        memberRepository.moveIfNeeded(movedId);
+
+        assertThat(coordinator.recover(Duration.ofMillis(-1000))).isEqualTo(2);
+        assertThat(coordinator.recover(Duration.ofMillis(-1000))).isZero();
+        memberRepository.migrateAll(10);
+        memberRepository.finishMigration();
+
+        // 옮겨진 회원은 새 샤드에서, 아직 옮겨지지 않은 회원은 기록한 샤드에서 한 번씩만 입금된다
+        assertThat(memberRepository.findById(movedId).getMoney()).isEqualTo(12000);
+        assertThat(memberRepository.findById(notMovedId).getMoney()).isEqualTo(11000);
+        assertThat(memberRepository.findById(fromId).getMoney()).isEqualTo(7000);
+        assertThat(logStatus(fromId)).containsExactly(ShardedTransferCoordinator.DONE, ShardedTransferCoordinator.DONE);
+        assertThat(coordinator.getCompensatedCount()).isZero();
+    }
+
+    private void insertPending(String transferId, String fromId, String toId, int money) {
+        insertPending(transferId, fromId, toId, money, memberRepository.shardNameFor(toId));
+    }
+
+    private void insertPending(String transferId, String fromId, String toId, int money, String toShard) {
+        new JdbcTemplate(dataSources.get(memberRepository.shardNameFor(fromId))).update(
+            "insert into transfer_log(transfer_id, from_id, to_id, to_shard, money, status) values (?, ?, ?, ?, ?, ?)",
+            transferId, fromId, toId, toShard, money, ShardedTransferCoordinator.DEBITED);
+    }
+
+    private List<String> logStatus(String fromId) {
+        return new JdbcTemplate(dataSources.get(memberRepository.shardNameFor(fromId)))
+            .queryForList("select status from transfer_log where from_id = ?", String.class, fromId);
+    }
+
+    private String memberOn(String shardName, String exceptId) {
+        for (int i = 0; i < 20; i++) {
+            String memberId = "m" + i;
+            if (!memberId.equals(exceptId) && memberRepository.shardNameFor(memberId).equals(shardName)) {
+                return memberId;
+            }
+        }
+        throw new IllegalStateException("no member on " + shardName);
+    }
+
+    private String memberNotOn(String shardName) {
+        return memberNotOn(shardName, null);
+    }
+
+    private String memberNotOn(String shardName, String exceptId) {
+        for (int i = 0; i < 20; i++) {
+            String memberId = "m" + i;
+            if (!memberId.equals(exceptId) && !memberRepository.shardNameFor(memberId).equals(shardName)) {
+                return memberId;
+            }
+        }
+        throw new IllegalStateException("no member outside " + shardName);
+    }
+}
@@ -0,0 +1,107 @@
+package hello.jdbc.service;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+
+import hello.jdbc.domain.Member;
+import hello.jdbc.domain.TransferResult;
+import hello.jdbc.repository.MemberRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class TransferMetricsAspectTest {
+
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void recordTransferOutcome() {
+        MemberRepository memberRepository = new MemoryRepository();
+        memberRepository.save(new Member("memberA", 10000));
+        memberRepository.save(new Member("memberB", 10000));
+        memberRepository.save(new Member("ex", 10000));
+
+        AspectJProxyFactory proxyFactory = new AspectJProxyFactory(new MemberServiceV4(memberRepository));
+        proxyFactory.setProxyTargetClass(true);
+        proxyFactory.addAspect(new TransferMetricsAspect(registry));
+        MemberServiceV4 memberService = proxyFactory.getProxy();
+
+        memberService.accountTransfer("memberA", "memberB", 1000);
+        assertThatThrownBy(() -> memberService.accountTransfer("memberA", "ex", 1000))
+            .isInstanceOf(IllegalStateException.class);
+
+        assertThat(registry.get(TransferMetricsAspect.TIMER_NAME)
+            .tag("service", "MemberServiceV4").tag("outcome", "success")
+            .timer().count()).isEqualTo(1);
+        assertThat(registry.get(TransferMetricsAspect.TIMER_NAME)
+            .tag("outcome", "error").tag("exception", "IllegalStateException")
+            .timer().count()).isEqualTo(1);
+    }
+
+    /**
+     * DB 없이 이체를 실행하기 위한 메모리 리포지토리
+     */
+    static class MemoryRepository implements MemberRepository {
+
+        final Map<String, Member> store = new HashMap<>();
+
+        @Override
+        public Member save(Member member) {
+            store.put(member.getMemberId(), member);
+            return member;
+        }
+
+        @Override
+        public Member findById(String memberId) {
+            return store.get(memberId);
+        }
+
+        @Override
+        public Map<String, Member> findByIdsForUpdate(Collection<String> memberIds) {
+            Map<String, Member> result = new TreeMap<>();
+            memberIds.stream().filter(store::containsKey).forEach(memberId -> result.put(memberId, store.get(memberId)));
+            return result;
+        }
+
+        @Override
+        public Stream<Member> streamAll(int fetchSize) {
+            return store.values().stream();
+        }
+
+        @Override
+        public TransferResult transfer(String fromId, String toId, int money) {
+            throw new UnsupportedOperationException("MemberServiceV4 uses findByIdsForUpdate and update");
+        }
+
+        @Override
+        public int addMoney(String memberId, int delta) {
+            throw new UnsupportedOperationException("MemberServiceV4 uses findByIdsForUpdate and update");
+        }
+
+        @Override
+        public int withdraw(String memberId, int amount) {
+            throw new UnsupportedOperationException("MemberServiceV4 uses findByIdsForUpdate and update");
+        }
+
+        @Override
+        public void update(String memberId, int money) {
+            store.put(memberId, new Member(memberId, money));
+        }
+
+        @Override
+        public void delete(String memberId) {
+            store.remove(memberId);
+        }
+
+        @Override
+        public boolean deleteIfUnchanged(Member expected) {
+            throw new UnsupportedOperationException("MemberServiceV4 uses findByIdsForUpdate and update");
+        }
+    }
+}